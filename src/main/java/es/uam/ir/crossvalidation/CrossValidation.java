@@ -13,7 +13,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
-import java.util.Random;
+import java.util.SplittableRandom;
 
 /**
  *
@@ -22,16 +22,16 @@ import java.util.Random;
  */
 public class CrossValidation {
 
-    private static final Random rnd = new Random();
-
     /**
      * 
      * @param dataPath
      * @param outputPath
      * @param nfolds
+     * @param seed seed of the random assignment of ratings to folds
      * @throws IOException 
      */
-    public static void crowssValidation(String dataPath, String outputPath, int nfolds) throws IOException {
+    public static void crowssValidation(String dataPath, String outputPath, int nfolds, long seed) throws IOException {
+        SplittableRandom rnd = new SplittableRandom(seed);
         PrintStream trainData[] = new PrintStream[nfolds];
         PrintStream testData[] = new PrintStream[nfolds];
 
@@ -10,84 +10,119 @@ package es.uam.ir.filler;
 
 import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
 import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
-import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.ir.ranksys.rec.fast.RankedList;
 import es.uam.ir.ranksys.rec.fast.basic.RandomRecommender;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import es.uam.ir.ranksys.rec.runner.fast.CandidateIndex;
+import es.uam.ir.ranksys.rec.runner.fast.IidxSet;
+import es.uam.ir.util.RandomStreams;
 import java.util.function.IntPredicate;
-import java.util.stream.Collectors;
-import org.ranksys.core.util.tuples.Tuple2id;
 
 /**
- * 
+ * Fills recommendation lists up to a length with random items. The fill
+ * items are drawn from a random sequence of {@link RandomRecommender},
+ * skipping the items already in the list, which are marked on a bit mask
+ * reused by each thread. The sequence is drawn from a random stream keyed by
+ * the user, the target size and the recommender, so that fills are
+ * reproducible and independent across recommenders and target sizes. When
+ * the set of candidate items is small, the fill is sampled from the
+ * candidates, instead of walking the permutation of the whole catalog.
+ *
  * @author Rocío Cañamares
  * @author Pablo Castells
  * 
- * @param <U>
- * @param <I> 
+ * @param <U> type of the users
+ * @param <I> type of the items
  */
 public class Filler<U, I> {
 
     public enum Mode {
         RND, NONE
     };
+
     private final Mode mode;
-    private final FastPreferenceData<U, I> data;
+    private final int nItems;
     private final RandomRecommender<U, I> randomRecommender;
+    private final ThreadLocal<boolean[]> marks;
+    private final ThreadLocal<int[]> buffers;
+    private final ThreadLocal<Unmarked> filters = ThreadLocal.withInitial(Unmarked::new);
+    private final ThreadLocal<RankedList> fills = ThreadLocal.withInitial(RankedList::new);
 
     /**
      * 
      * @param mode
      * @param iIndex
      * @param uIndex
-     * @param data 
+     * @param seed seed of the random fill
      */
-    public Filler(Mode mode, FastItemIndex<I> iIndex, FastUserIndex<U> uIndex, FastPreferenceData<U, I> data) {
+    public Filler(Mode mode, FastItemIndex<I> iIndex, FastUserIndex<U> uIndex, long seed) {
         this.mode = mode;
-        this.data = data;
-        this.randomRecommender = new RandomRecommender<>(uIndex, iIndex);
+        this.nItems = iIndex.numItems();
+        this.randomRecommender = new RandomRecommender<>(uIndex, iIndex, seed);
+        this.marks = ThreadLocal.withInitial(() -> new boolean[iIndex.numItems()]);
+        this.buffers = ThreadLocal.withInitial(() -> new int[iIndex.numItems()]);
     }
 
     /**
-     * 
-     * @param items
-     * @param length
-     * @param filter
-     * @param user
-     * @return 
+     * Fills a list of item indices in place.
+     *
+     * @param iidxs list of item indices, with room for the fill
+     * @param n number of items in the list
+     * @param length length to fill the list up to
+     * @param candidates candidate items of the fill
+     * @param uidx index of the user
+     * @param s index of the target size
+     * @param rec key of the recommender
+     * @return number of items in the filled list
      */
-    public List<Tuple2id> fill(List<Tuple2id> items, int length, IntPredicate filter, U user) {
-        List<Tuple2id> newItems = new ArrayList<>(items);
-        
-        if (mode == Mode.NONE) {
-            return newItems;
+    public int fill(int[] iidxs, int n, int length, IidxSet candidates, int uidx, int s, int rec) {
+        if (mode == Mode.NONE || n >= length) {
+            return n;
         }
 
-        if (newItems.size() < length) {
-            Set<Integer> iidxSet = new HashSet<>();
-            items.forEach(item -> iidxSet.add(item.v1));
+        boolean[] marked = marks.get();
+        for (int i = 0; i < n; i++) {
+            marked[iidxs[i]] = true;
+        }
 
-            List<Integer> newIndices = randomRecommender.getRecommendation(data.user2uidx(user), length - newItems.size(), item -> !iidxSet.contains(item) && filter.test(item))
-                    .getIidxs()
-                    .parallelStream()
-                    .map(id -> id.v1)
-                    .collect(Collectors.toList());
+        RankedList fill = fills.get();
+        long stream = RandomStreams.key(RandomStreams.key(randomRecommender.stream(uidx), s), rec);
+        if (CandidateIndex.isSmall(candidates.size(), nItems)) {
+            // At most n of the first length candidates are already in the list
+            int[] buffer = buffers.get();
+            int nCandidates = candidates.copyTo(buffer);
+            randomRecommender.getRanking(stream, buffer, nCandidates, length, fill);
+        } else {
+            Unmarked filter = filters.get();
+            filter.marked = marked;
+            filter.candidates = candidates;
+            randomRecommender.getRanking(stream, length - n, filter, fill);
+            filter.candidates = null;
+        }
 
-            if (length == 0) {
-                length = newIndices.size();
+        int filled = n;
+        for (int i = 0; i < fill.size() && filled < length; i++) {
+            int iidx = fill.iidx(i);
+            if (!marked[iidx]) {
+                iidxs[filled++] = iidx;
             }
+        }
+        for (int i = 0; i < n; i++) {
+            marked[iidxs[i]] = false;
+        }
+        return filled;
+    }
+
+    /**
+     * Candidate items not yet in the list, reused by each thread.
+     */
+    private static final class Unmarked implements IntPredicate {
 
-            List<Integer> allItems = newIndices.stream()
-                    .filter(iidx -> !iidxSet.contains(iidx) && filter.test(iidx))
-                    .collect(Collectors.toList());
+        private boolean[] marked;
+        private IidxSet candidates;
 
-            for (int i = 0; i < allItems.size() && newItems.size() < length; i++) {
-                int iidx = allItems.get(i);
-                newItems.add(new Tuple2id(iidx, 1.0));
-            }
+        @Override
+        public boolean test(int iidx) {
+            return !marked[iidx] && candidates.test(iidx);
         }
-        return newItems;
     }
 }
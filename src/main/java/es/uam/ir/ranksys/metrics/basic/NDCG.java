@@ -29,7 +29,7 @@ public class NDCG<U, I> extends AbstractRecommendationMetric<U, I> {
 
     private final NDCGRelevanceModel<U, I> relModel;
     private final int cutoff;
-    private final RankingDiscountModel disc;
+    private final double[] disc;
 
     /**
      * Constructor.
@@ -40,7 +40,11 @@ public class NDCG<U, I> extends AbstractRecommendationMetric<U, I> {
     public NDCG(int cutoff, NDCGRelevanceModel<U, I> relModel) {
         this.relModel = relModel;
         this.cutoff = cutoff;
-        this.disc = new LogarithmicDiscountModel();
+        RankingDiscountModel discountModel = new LogarithmicDiscountModel();
+        this.disc = new double[cutoff];
+        for (int rank = 0; rank < cutoff; rank++) {
+            disc[rank] = discountModel.disc(rank);
+        }
     }
 
     /**
@@ -57,7 +61,7 @@ public class NDCG<U, I> extends AbstractRecommendationMetric<U, I> {
         int rank = 0;
 
         for (Tuple2od<I> pair : recommendation.getItems()) {
-            ndcg += userRelModel.gain(pair.v1) * disc.disc(rank);
+            ndcg += userRelModel.gain(pair.v1) * disc[rank];
 
             rank++;
             if (rank >= cutoff) {
@@ -73,15 +77,14 @@ public class NDCG<U, I> extends AbstractRecommendationMetric<U, I> {
     }
 
     private double idcg(NDCGRelevanceModel.UserNDCGRelevanceModel relModel) {
-        double[] gains = relModel.getGainValues();
-        Arrays.sort(gains);
+        double[] gains = relModel.getSortedGainValues();
 
         double idcg = 0;
         int n = Math.min(cutoff, gains.length);
         int m = gains.length;
 
         for (int rank = 0; rank < n; rank++) {
-            idcg += gains[m - rank - 1] * disc.disc(rank);
+            idcg += gains[m - rank - 1] * disc[rank];
         }
 
         return idcg;
@@ -129,6 +132,7 @@ public class NDCG<U, I> extends AbstractRecommendationMetric<U, I> {
         public class UserNDCGRelevanceModel implements IdealRelevanceModel.UserIdealRelevanceModel<U, I> {
 
             private final Object2DoubleMap<I> gainMap;
+            private final double[] sortedGains;
 
             /**
              * Constructor.
@@ -143,6 +147,8 @@ public class NDCG<U, I> extends AbstractRecommendationMetric<U, I> {
                         .filter(iv -> iv.v2 >= threshold)
                         .forEach(iv -> gainMap.put(iv.v1, 1));
 
+                this.sortedGains = gainMap.values().toDoubleArray();
+                Arrays.sort(sortedGains);
             }
 
             /**
@@ -185,6 +191,17 @@ public class NDCG<U, I> extends AbstractRecommendationMetric<U, I> {
             public double[] getGainValues() {
                 return gainMap.values().toDoubleArray();
             }
+
+            /**
+             * Get the vector of gains of the relevant items, in increasing
+             * order. The array is computed once and shared, and must not be
+             * modified.
+             *
+             * @return sorted array of positive relevance gains
+             */
+            public double[] getSortedGainValues() {
+                return sortedGains;
+            }
         }
     }
 
@@ -0,0 +1,98 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.metrics.fast;
+
+import es.uam.ir.ranksys.rec.runner.fast.IidxSet;
+
+/**
+ * Evaluation kernel for Coverage, nDCG, P and Recall at several cutoffs
+ * with binary relevance. Recommendations are given as arrays of item
+ * indices, and all the metrics at all the cutoffs are computed in a single
+ * pass over each list, from the hits and DCG accumulated up to each cutoff.
+ * The values are the same as those of
+ * {@link es.uam.ir.ranksys.metrics.basic.Coverage},
+ * {@link es.uam.ir.ranksys.metrics.basic.NDCG} and the RankSys Precision and
+ * Recall. Relevance is read from a {@link RelevanceIndex} shared by all the
+ * recommenders of a fold, and users can be evaluated in parallel.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public class FastMetrics {
+
+    /**
+     * Position of each metric among the values of a cutoff. The values of
+     * cutoff c are stored at positions c * N_METRICS + metric.
+     */
+    public static final int COVERAGE = 0;
+    public static final int NDCG = 1;
+    public static final int PRECISION = 2;
+    public static final int RECALL = 3;
+    public static final int N_METRICS = 4;
+
+    private final RelevanceIndex relevance;
+    private final int[] cutoffs;
+
+    /**
+     *
+     * @param relevance relevance index of the test data
+     * @param cutoffs cutoffs, in increasing order
+     */
+    public FastMetrics(RelevanceIndex relevance, int[] cutoffs) {
+        this.relevance = relevance;
+        this.cutoffs = cutoffs;
+    }
+
+    /**
+     * Number of values computed for each list.
+     *
+     * @return number of metrics times number of cutoffs
+     */
+    public int numValues() {
+        return cutoffs.length * N_METRICS;
+    }
+
+    /**
+     * Evaluates several recommendation lists of a user.
+     *
+     * @param uidx index of the user
+     * @param lists recommendation lists, as item indices
+     * @param lengths length of each list
+     * @param values values of list s are stored in values[s][value][uidx]
+     */
+    public void evaluate(int uidx, int[][] lists, int[] lengths, double[][][] values) {
+        IidxSet relevant = relevance.relevant(uidx);
+        int nRelevant = relevant.size();
+        int maxCutoff = cutoffs[cutoffs.length - 1];
+
+        for (int s = 0; s < lists.length; s++) {
+            int[] list = lists[s];
+            int length = Math.min(lengths[s], maxCutoff);
+
+            int hits = 0;
+            double dcg = 0.0;
+            int rank = 0;
+            for (int c = 0; c < cutoffs.length; c++) {
+                int cutoff = cutoffs[c];
+                for (; rank < Math.min(length, cutoff); rank++) {
+                    if (relevant.test(list[rank])) {
+                        hits++;
+                        dcg += relevance.disc(rank);
+                    }
+                }
+
+                int base = c * N_METRICS;
+                values[s][base + COVERAGE][uidx] = Math.min(length, cutoff) * 1.0 / cutoff;
+                values[s][base + NDCG][uidx] = dcg > 0 ? dcg / relevance.idcg(uidx, cutoff) : 0.0;
+                values[s][base + PRECISION][uidx] = hits / (double) cutoff;
+                values[s][base + RECALL][uidx] = nRelevant == 0 ? 0.0 : hits / (double) nRelevant;
+            }
+        }
+    }
+}
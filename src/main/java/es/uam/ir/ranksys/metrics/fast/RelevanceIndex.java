@@ -0,0 +1,100 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.metrics.fast;
+
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.eps.ir.ranksys.metrics.rank.LogarithmicDiscountModel;
+import es.uam.ir.ranksys.rec.runner.fast.IidxSet;
+import java.util.stream.IntStream;
+
+/**
+ * Binary relevance of the test data, indexed by uidx. The relevant items of
+ * every user, the logarithmic discount of every rank and the ideal DCG for
+ * every number of relevant items are computed once, so that a fold is
+ * evaluated for all the recommenders and target sizes without rebuilding
+ * relevance models.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public class RelevanceIndex {
+
+    private final IidxSet[] relevant;
+    private final double[] disc;
+    private final double[] idcg;
+
+    /**
+     *
+     * @param <U> type of the users
+     * @param <I> type of the items
+     * @param testData test subset of preferences
+     * @param threshold relevance threshold
+     * @param maxCutoff maximum length of evaluated recommendation lists
+     */
+    public <U, I> RelevanceIndex(FastPreferenceData<U, I> testData, double threshold, int maxCutoff) {
+        int nItems = testData.numItems();
+        this.relevant = new IidxSet[testData.numUsers()];
+        IntStream.range(0, testData.numUsers()).parallel().forEach(uidx -> {
+            relevant[uidx] = IidxSet.ofUnsorted(testData.getUidxPreferences(uidx)
+                    .filter(iv -> iv.v2 >= threshold)
+                    .mapToInt(iv -> iv.v1)
+                    .toArray(), nItems);
+        });
+
+        // idcg[n] is the ideal DCG of a user with n relevant items
+        LogarithmicDiscountModel discountModel = new LogarithmicDiscountModel();
+        this.disc = new double[maxCutoff];
+        this.idcg = new double[maxCutoff + 1];
+        for (int rank = 0; rank < maxCutoff; rank++) {
+            disc[rank] = discountModel.disc(rank);
+            idcg[rank + 1] = idcg[rank] + disc[rank];
+        }
+    }
+
+    /**
+     * Relevant items of a user.
+     *
+     * @param uidx index of the user
+     * @return relevant items of the user
+     */
+    public IidxSet relevant(int uidx) {
+        return relevant[uidx];
+    }
+
+    /**
+     * Number of relevant items of a user.
+     *
+     * @param uidx index of the user
+     * @return number of relevant items of the user
+     */
+    public int numRelevant(int uidx) {
+        return relevant[uidx].size();
+    }
+
+    /**
+     * Logarithmic discount of a rank.
+     *
+     * @param rank rank, starting at 0, lower than the maximum cutoff
+     * @return discount of the rank
+     */
+    public double disc(int rank) {
+        return disc[rank];
+    }
+
+    /**
+     * Ideal DCG of a user at a cutoff.
+     *
+     * @param uidx index of the user
+     * @param cutoff cutoff, not larger than the maximum cutoff
+     * @return ideal DCG of the user
+     */
+    public double idcg(int uidx, int cutoff) {
+        return idcg[Math.min(cutoff, numRelevant(uidx))];
+    }
+}
@@ -0,0 +1,120 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.mf.rec;
+
+import cern.colt.matrix.DoubleMatrix1D;
+import cern.colt.matrix.impl.DenseDoubleMatrix2D;
+import es.uam.eps.ir.ranksys.fast.FastRecommendation;
+import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
+import es.uam.eps.ir.ranksys.mf.Factorization;
+import es.uam.eps.ir.ranksys.mf.rec.MFRecommender;
+import es.uam.ir.ranksys.rec.fast.FastCandidateRecommender;
+import es.uam.ir.ranksys.rec.fast.RankedList;
+import es.uam.ir.ranksys.rec.fast.TopN;
+import java.util.function.IntPredicate;
+
+/**
+ * Matrix factorization recommender which scores only the items accepted by
+ * the filter, or a set of candidate items, with one dot product per item
+ * instead of the product of the whole item matrix. The top items are
+ * selected on a heap reused by each thread.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ *
+ * @param <U> type of the users
+ * @param <I> type of the items
+ */
+public class CandidateMFRecommender<U, I> extends MFRecommender<U, I> implements FastCandidateRecommender<U, I> {
+
+    private final Factorization<U, I> factorization;
+    private final ThreadLocal<TopN> heaps = ThreadLocal.withInitial(TopN::new);
+
+    /**
+     * Constructor.
+     *
+     * @param uIndex fast user index
+     * @param iIndex fast item index
+     * @param factorization matrix factorization
+     */
+    public CandidateMFRecommender(FastUserIndex<U> uIndex, FastItemIndex<I> iIndex, Factorization<U, I> factorization) {
+        super(uIndex, iIndex, factorization);
+        this.factorization = factorization;
+    }
+
+    @Override
+    public FastRecommendation getRecommendation(int uidx, int maxLength, IntPredicate filter) {
+        RankedList ranking = new RankedList();
+        getRanking(uidx, maxLength, filter, ranking);
+        return new FastRecommendation(uidx, ranking.toList());
+    }
+
+    @Override
+    public void getRanking(int uidx, int maxLength, IntPredicate filter, RankedList ranking) {
+        ranking.clear();
+        DoubleMatrix1D pu = factorization.getUserVector(uidx2user(uidx));
+        if (pu == null) {
+            return;
+        }
+        double[] userVector = pu.toArray();
+        DenseDoubleMatrix2D itemMatrix = factorization.getItemMatrix();
+
+        TopN topN = heaps.get();
+        topN.reset(Math.min(maxLength, factorization.numItems()));
+        for (int iidx = 0; iidx < factorization.numItems(); iidx++) {
+            if (filter.test(iidx)) {
+                topN.add(iidx, dot(itemMatrix, iidx, userVector));
+            }
+        }
+        topN.drainTo(ranking);
+    }
+
+    @Override
+    public void getRanking(int uidx, int[] candidates, int maxLength, RankedList ranking) {
+        ranking.clear();
+        DoubleMatrix1D pu = factorization.getUserVector(uidx2user(uidx));
+        if (pu == null) {
+            return;
+        }
+        double[] userVector = pu.toArray();
+        DenseDoubleMatrix2D itemMatrix = factorization.getItemMatrix();
+
+        TopN topN = heaps.get();
+        topN.reset(Math.min(maxLength, candidates.length));
+        for (int iidx : candidates) {
+            topN.add(iidx, dot(itemMatrix, iidx, userVector));
+        }
+        topN.drainTo(ranking);
+    }
+
+    /**
+     * Product of a row of the item matrix and the user vector, with the
+     * same order of operations as the matrix-vector product of colt
+     * ({@link DenseDoubleMatrix2D#zMult}), so that scores are identical to
+     * those of {@link MFRecommender}: the first K mod 4 terms one by one,
+     * then the rest in groups of four.
+     */
+    private static double dot(DenseDoubleMatrix2D itemMatrix, int iidx, double[] userVector) {
+        int k = userVector.length;
+        int j = 0;
+        double sum = 0;
+        for (int n = k % 4; n > 0; n--, j++) {
+            sum += itemMatrix.getQuick(iidx, j) * userVector[j];
+        }
+        for (int n = k / 4; n > 0; n--, j += 4) {
+            sum += itemMatrix.getQuick(iidx, j) * userVector[j]
+                    + itemMatrix.getQuick(iidx, j + 1) * userVector[j + 1]
+                    + itemMatrix.getQuick(iidx, j + 2) * userVector[j + 2]
+                    + itemMatrix.getQuick(iidx, j + 3) * userVector[j + 3];
+        }
+        // alpha * sum + beta * z of zMult, with alpha 1 and beta 0
+        return 1.0 * sum + 0.0 * 0.0;
+    }
+}
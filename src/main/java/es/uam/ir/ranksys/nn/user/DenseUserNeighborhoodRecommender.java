@@ -0,0 +1,108 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.nn.user;
+
+import es.uam.eps.ir.ranksys.fast.FastRecommendation;
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.eps.ir.ranksys.nn.user.UserNeighborhoodRecommender;
+import es.uam.eps.ir.ranksys.nn.user.neighborhood.UserNeighborhood;
+import es.uam.ir.ranksys.rec.fast.FastCandidateRecommender;
+import es.uam.ir.ranksys.rec.fast.RankedList;
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import static java.lang.Math.pow;
+import java.util.function.IntPredicate;
+
+/**
+ * User-based nearest neighbors recommender on dense accumulators. The
+ * weighted sum of the ratings, the sum of the similarities and the number of
+ * neighbors of each item are gathered in a single walk over the
+ * neighborhood, into dense accumulators reused by each thread across users,
+ * and the ranking is taken directly from them. Given a set of candidate
+ * items, only the ratings of the candidates are accumulated.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ *
+ * @param <U> type of the users
+ * @param <I> type of the items
+ */
+public class DenseUserNeighborhoodRecommender<U, I> extends UserNeighborhoodRecommender<U, I> implements FastCandidateRecommender<U, I> {
+
+    private final int min;
+    private final ThreadLocal<NeighborAccumulators> accumulators;
+
+    /**
+     * Constructor.
+     *
+     * @param data preference data
+     * @param neighborhood user neighborhood
+     * @param q exponent of the similarity
+     */
+    public DenseUserNeighborhoodRecommender(FastPreferenceData<U, I> data, UserNeighborhood<U> neighborhood, int q) {
+        this(data, neighborhood, q, -1);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param data preference data
+     * @param neighborhood user neighborhood
+     * @param q exponent of the similarity
+     * @param min minimum number of neighbors needed to be recommended, with
+     * scores normalized by the sum of the similarities, or -1 for plain
+     * scores
+     */
+    protected DenseUserNeighborhoodRecommender(FastPreferenceData<U, I> data, UserNeighborhood<U> neighborhood, int q, int min) {
+        super(data, neighborhood, q);
+        this.min = min;
+        this.accumulators = ThreadLocal.withInitial(() -> new NeighborAccumulators(data.numItems()));
+    }
+
+    private NeighborAccumulators accumulate(int uidx, int[] candidates) {
+        NeighborAccumulators acc = accumulators.get();
+        acc.clear();
+        if (candidates != null) {
+            acc.restrict(candidates);
+        }
+        neighborhood.getNeighbors(uidx).forEach(vs -> {
+            acc.add(data.getUidxIidxs(vs.v1), data.getUidxVs(vs.v1), pow(vs.v2, q));
+        });
+        return acc;
+    }
+
+    @Override
+    public Int2DoubleMap getScoresMap(int uidx) {
+        return accumulate(uidx, null).scoresMap(min);
+    }
+
+    @Override
+    public FastRecommendation getRecommendation(int uidx, int maxLength, IntPredicate filter) {
+        RankedList ranking = new RankedList();
+        getRanking(uidx, maxLength, filter, ranking);
+        return new FastRecommendation(uidx, ranking.toList());
+    }
+
+    @Override
+    public void getRanking(int uidx, int maxLength, IntPredicate filter, RankedList ranking) {
+        if (uidx == -1) {
+            ranking.clear();
+            return;
+        }
+        accumulate(uidx, null).ranking(min, filter, maxLength, ranking);
+    }
+
+    @Override
+    public void getRanking(int uidx, int[] candidates, int maxLength, RankedList ranking) {
+        if (uidx == -1) {
+            ranking.clear();
+            return;
+        }
+        accumulate(uidx, candidates).ranking(min, iidx -> true, maxLength, ranking);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.nn.user;
+
+import es.uam.ir.ranksys.rec.fast.RankedList;
+import es.uam.ir.ranksys.rec.fast.TopN;
+import it.unimi.dsi.fastutil.doubles.DoubleIterator;
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import java.util.function.IntPredicate;
+
+/**
+ * Dense accumulators of the items rated by the neighbors of a user: sum of
+ * the weighted ratings, sum of the weights and number of neighbors of each
+ * item. The items touched are listed, so that only they are visited to rank
+ * and to clear the accumulators, which are meant to be reused by a thread
+ * across users. The accumulators can be restricted to a set of candidate
+ * items, so that the ratings of other items are skipped.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+class NeighborAccumulators {
+
+    private final double[] scores;
+    private final double[] norms;
+    private final int[] counts;
+    private final int[] items;
+    private int nItems = 0;
+    private final boolean[] allowed;
+    private int[] candidates = null;
+    private final TopN topN = new TopN();
+
+    /**
+     *
+     * @param numItems number of items
+     */
+    NeighborAccumulators(int numItems) {
+        this.scores = new double[numItems];
+        this.norms = new double[numItems];
+        this.counts = new int[numItems];
+        this.items = new int[numItems];
+        this.allowed = new boolean[numItems];
+    }
+
+    /**
+     * Resets the accumulators of the items touched, and lifts the
+     * restriction to candidates.
+     */
+    void clear() {
+        for (int i = 0; i < nItems; i++) {
+            int iidx = items[i];
+            scores[iidx] = 0;
+            norms[iidx] = 0;
+            counts[iidx] = 0;
+        }
+        nItems = 0;
+        if (candidates != null) {
+            for (int iidx : candidates) {
+                allowed[iidx] = false;
+            }
+            candidates = null;
+        }
+    }
+
+    /**
+     * Restricts the accumulators to a set of candidate items, until they are
+     * cleared.
+     *
+     * @param candidates distinct indices of the candidate items
+     */
+    void restrict(int[] candidates) {
+        this.candidates = candidates;
+        for (int iidx : candidates) {
+            allowed[iidx] = true;
+        }
+    }
+
+    /**
+     * Adds the ratings of a neighbor.
+     *
+     * @param iidxs items rated by the neighbor
+     * @param vs ratings of the neighbor
+     * @param w weight of the neighbor
+     */
+    void add(IntIterator iidxs, DoubleIterator vs, double w) {
+        while (iidxs.hasNext()) {
+            int iidx = iidxs.nextInt();
+            double v = vs.nextDouble();
+            if (candidates != null && !allowed[iidx]) {
+                continue;
+            }
+            if (counts[iidx] == 0) {
+                items[nItems++] = iidx;
+            }
+            scores[iidx] += w * v;
+            norms[iidx] += w;
+            counts[iidx]++;
+        }
+    }
+
+    private boolean accepts(int iidx, int min) {
+        return min < 0 || counts[iidx] >= min;
+    }
+
+    private double score(int iidx, int min) {
+        return min < 0 ? scores[iidx] : scores[iidx] * 1.0 / norms[iidx];
+    }
+
+    /**
+     * Scores of the items with the current neighbors.
+     *
+     * @param min minimum number of neighbors for the normalized scores, or
+     * -1 for the plain scores
+     * @return map of scores
+     */
+    Int2DoubleOpenHashMap scoresMap(int min) {
+        Int2DoubleOpenHashMap scoresMap = new Int2DoubleOpenHashMap();
+        for (int i = 0; i < nItems; i++) {
+            int iidx = items[i];
+            if (accepts(iidx, min)) {
+                scoresMap.put(iidx, score(iidx, min));
+            }
+        }
+        return scoresMap;
+    }
+
+    /**
+     * Ranking of the items with the current neighbors.
+     *
+     * @param min minimum number of neighbors for the normalized scores, or
+     * -1 for the plain scores
+     * @param filter filter of the items to rank
+     * @param maxLength maximum length of the ranking
+     * @param ranking list where the items are written by decreasing score,
+     * after clearing it
+     */
+    void ranking(int min, IntPredicate filter, int maxLength, RankedList ranking) {
+        ranking.clear();
+        topN.reset(Math.min(maxLength, nItems));
+        for (int i = 0; i < nItems; i++) {
+            int iidx = items[i];
+            if (accepts(iidx, min) && filter.test(iidx)) {
+                topN.add(iidx, score(iidx, min));
+            }
+        }
+        topN.drainTo(ranking);
+    }
+}
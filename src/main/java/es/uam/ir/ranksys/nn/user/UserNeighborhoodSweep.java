@@ -0,0 +1,183 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.nn.user;
+
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.ir.ranksys.rec.fast.RankedList;
+import static java.lang.Math.pow;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/**
+ * Sweep of user-based nearest neighbors recommenders over the neighborhood
+ * size k, sharing one similarity index. The recommenders of the sweep are the
+ * plain ({@link es.uam.eps.ir.ranksys.nn.user.UserNeighborhoodRecommender})
+ * and the normalized with a minimum of neighbors
+ * ({@link NormUserNeighborhoodRecommenderWithMinimum}) variants, for any k.
+ *
+ * <p>
+ * The neighbors of each user are read from a {@link UserSimilarityIndex},
+ * sorted by decreasing similarity, so the neighborhood of any k is a prefix
+ * of the same list.
+ * Scores, normalizations and neighbor counts are accumulated as neighbors
+ * are added one by one, and the ranking of each recommender is taken when
+ * the prefix reaches its k, so the whole sweep costs about as much as its
+ * largest k. Since neighbors are added in a different order, scores may
+ * differ from those of the separate recommenders in the last bits.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ *
+ * @param <U> type of the users
+ * @param <I> type of the items
+ */
+public class UserNeighborhoodSweep<U, I> {
+
+    private final FastPreferenceData<U, I> data;
+    private final UserSimilarityIndex index;
+    private final int q;
+    private final List<String> names = new ArrayList<>();
+    private final List<int[]> variants = new ArrayList<>();
+    private final ThreadLocal<NeighborAccumulators> accumulators;
+    private int maxK = 0;
+
+    /**
+     *
+     * @param data preference data
+     * @param index user similarity index, with at least as many neighbors
+     * as the largest k of the sweep
+     * @param q exponent of the similarity
+     */
+    public UserNeighborhoodSweep(FastPreferenceData<U, I> data, UserSimilarityIndex index, int q) {
+        this.data = data;
+        this.index = index;
+        this.q = q;
+        this.accumulators = ThreadLocal.withInitial(() -> new NeighborAccumulators(data.numItems()));
+    }
+
+    private UserNeighborhoodSweep(UserNeighborhoodSweep<U, I> sweep) {
+        this.data = sweep.data;
+        this.index = sweep.index;
+        this.q = sweep.q;
+        this.accumulators = sweep.accumulators;
+    }
+
+    /**
+     * Adds a user-based kNN recommender to the sweep.
+     *
+     * @param name name of the recommender
+     * @param k size of the neighborhood
+     */
+    public void add(String name, int k) {
+        names.add(name);
+        variants.add(new int[]{k, -1});
+        maxK = Math.max(maxK, k);
+    }
+
+    /**
+     * Adds a normalized user-based kNN recommender to the sweep.
+     *
+     * @param name name of the recommender
+     * @param k size of the neighborhood
+     * @param min minimum number of neighbors needed to be recommended
+     */
+    public void addNormalized(String name, int k, int min) {
+        names.add(name);
+        variants.add(new int[]{k, min});
+        maxK = Math.max(maxK, k);
+    }
+
+    /**
+     * Recommenders of the sweep, in the order in which they were added.
+     *
+     * @return names of the recommenders
+     */
+    public List<String> names() {
+        return names;
+    }
+
+    /**
+     * Sweep of some of the recommenders of this sweep, sharing its
+     * accumulators, so that a sweep can be evaluated in batches. The
+     * neighbors of a user are only added up to the largest k of the batch.
+     *
+     * @param batch names of recommenders of this sweep
+     * @return sweep of the given recommenders, in the given order
+     */
+    public UserNeighborhoodSweep<U, I> subset(List<String> batch) {
+        UserNeighborhoodSweep<U, I> subset = new UserNeighborhoodSweep<>(this);
+        for (String name : batch) {
+            int[] variant = variants.get(names.indexOf(name));
+            subset.names.add(name);
+            subset.variants.add(variant);
+            subset.maxK = Math.max(subset.maxK, variant[0]);
+        }
+        return subset;
+    }
+
+    /**
+     * Rankings of a user for all the recommenders of the sweep.
+     *
+     * @param uidx index of the user
+     * @param filter filter of the items to rank
+     * @param rankings lists where the ranking of each recommender is
+     * written, in the order of {@link #names()}
+     */
+    public void getRankings(int uidx, IntPredicate filter, RankedList[] rankings) {
+        sweep(uidx, null, filter, rankings);
+    }
+
+    /**
+     * Rankings of a set of candidate items for all the recommenders of the
+     * sweep, accumulating only the ratings of the candidates.
+     *
+     * @param uidx index of the user
+     * @param candidates distinct indices of the candidate items
+     * @param rankings lists where the ranking of each recommender is
+     * written, in the order of {@link #names()}
+     */
+    public void getRankings(int uidx, int[] candidates, RankedList[] rankings) {
+        sweep(uidx, candidates, iidx -> true, rankings);
+    }
+
+    private void sweep(int uidx, int[] candidates, IntPredicate filter, RankedList[] rankings) {
+        if (uidx == -1) {
+            for (RankedList ranking : rankings) {
+                ranking.clear();
+            }
+            return;
+        }
+
+        int[] neighbors = index.neighbors(uidx);
+        float[] sims = index.similarities(uidx);
+
+        NeighborAccumulators acc = accumulators.get();
+        acc.clear();
+        if (candidates != null) {
+            acc.restrict(candidates);
+        }
+        int nNeighbors = 0;
+        while (true) {
+            for (int r = 0; r < variants.size(); r++) {
+                int k = variants.get(r)[0];
+                if (k == nNeighbors || (nNeighbors == neighbors.length && k > nNeighbors)) {
+                    acc.ranking(variants.get(r)[1], filter, Integer.MAX_VALUE, rankings[r]);
+                }
+            }
+            if (nNeighbors == neighbors.length || nNeighbors >= maxK) {
+                break;
+            }
+            int vidx = neighbors[nNeighbors];
+            double w = pow(sims[nNeighbors], q);
+            nNeighbors++;
+            acc.add(data.getUidxIidxs(vidx), data.getUidxVs(vidx), w);
+        }
+    }
+}
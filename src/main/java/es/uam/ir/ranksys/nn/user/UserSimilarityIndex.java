@@ -0,0 +1,282 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.nn.user;
+
+import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.eps.ir.ranksys.fast.utils.topn.IntDoubleTopN;
+import es.uam.eps.ir.ranksys.nn.user.neighborhood.UserNeighborhood;
+import it.unimi.dsi.fastutil.doubles.DoubleIterator;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import org.ranksys.core.util.tuples.Tuple2id;
+import static org.ranksys.core.util.tuples.Tuples.tuple;
+
+/**
+ * Sparse index of the top-K most similar users of every user, by vector
+ * cosine similarity. All the rows are computed once, in parallel over
+ * blocks of users, from sparse products over the item-user (transposed)
+ * preference lists, and are kept as compact arrays of user indices and
+ * similarities sorted by decreasing similarity. The neighbors of a user for
+ * any k up to K are thus read in O(k), and the index can be saved to and
+ * loaded from disk, with a fingerprint of the training data it was computed
+ * from.
+ *
+ * <p>
+ * Similarities and the selection of neighbors are computed as in
+ * {@link es.uam.eps.ir.ranksys.nn.user.sim.VectorCosineUserSimilarity}
+ * (dense mode) and
+ * {@link es.uam.eps.ir.ranksys.nn.user.neighborhood.TopKUserNeighborhood},
+ * so the neighbors are the same; similarities are stored as floats.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public class UserSimilarityIndex {
+
+    private static final int BLOCK_SIZE = 256;
+
+    private final int k;
+    private final int[][] neighbors;
+    private final float[][] similarities;
+
+    private UserSimilarityIndex(int k, int[][] neighbors, float[][] similarities) {
+        this.k = k;
+        this.neighbors = neighbors;
+        this.similarities = similarities;
+    }
+
+    /**
+     * Builds the index of the vector cosine similarity.
+     *
+     * @param <U> type of the users
+     * @param <I> type of the items
+     * @param data preference data
+     * @param alpha asymmetry of the cosine, 0.5 for the standard cosine
+     * @param k number of neighbors kept for each user
+     * @return the index
+     */
+    public static <U, I> UserSimilarityIndex cosine(FastPreferenceData<U, I> data, double alpha, int k) {
+        int nUsers = data.numUsers();
+
+        double[] norm2 = new double[nUsers];
+        data.getUidxWithPreferences().forEach(uidx -> {
+            if (data.useIteratorsPreferentially()) {
+                DoubleIterator vs = data.getUidxVs(uidx);
+                double sum = 0;
+                while (vs.hasNext()) {
+                    double v = vs.nextDouble();
+                    sum += v * v;
+                }
+                norm2[uidx] = sum;
+            } else {
+                norm2[uidx] = data.getUidxPreferences(uidx).mapToDouble(iv -> iv.v2).map(v -> v * v).sum();
+            }
+        });
+
+        int[][] neighbors = new int[nUsers][];
+        float[][] similarities = new float[nUsers][];
+        ThreadLocal<double[]> products = ThreadLocal.withInitial(() -> new double[nUsers]);
+        ThreadLocal<boolean[]> marks = ThreadLocal.withInitial(() -> new boolean[nUsers]);
+        ThreadLocal<int[]> touched = ThreadLocal.withInitial(() -> new int[nUsers]);
+        int nBlocks = (nUsers + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        IntStream.range(0, nBlocks).parallel().forEach(block -> {
+            double[] product = products.get();
+            boolean[] marked = marks.get();
+            int[] users = touched.get();
+            for (int uidx = block * BLOCK_SIZE; uidx < Math.min(nUsers, (block + 1) * BLOCK_SIZE); uidx++) {
+                // Sparse product of the user with all the users, over the item-user lists
+                int nTouched = 0;
+                IntIterator iidxs = data.getUidxIidxs(uidx);
+                DoubleIterator uvs = data.getUidxVs(uidx);
+                while (iidxs.hasNext()) {
+                    int iidx = iidxs.nextInt();
+                    double uv = uvs.nextDouble();
+                    IntIterator vidxs = data.getIidxUidxs(iidx);
+                    DoubleIterator vvs = data.getIidxVs(iidx);
+                    while (vidxs.hasNext()) {
+                        int vidx = vidxs.nextInt();
+                        if (!marked[vidx]) {
+                            marked[vidx] = true;
+                            users[nTouched++] = vidx;
+                        }
+                        product[vidx] += uv * vvs.nextDouble();
+                    }
+                }
+                product[uidx] = 0.0;
+
+                IntDoubleTopN topN = new IntDoubleTopN(k);
+                for (int i = 0; i < nTouched; i++) {
+                    int vidx = users[i];
+                    if (product[vidx] != 0.0) {
+                        topN.add(vidx, product[vidx] / (Math.pow(norm2[uidx], alpha) * Math.pow(norm2[vidx], 1.0 - alpha)));
+                    }
+                }
+                for (int i = 0; i < nTouched; i++) {
+                    product[users[i]] = 0.0;
+                    marked[users[i]] = false;
+                }
+
+                topN.sort();
+                int n = topN.size();
+                int[] row = new int[n];
+                float[] sims = new float[n];
+                int j = 0;
+                for (Tuple2id vs : (Iterable<Tuple2id>) topN.reverseStream()::iterator) {
+                    row[j] = vs.v1;
+                    sims[j] = (float) vs.v2;
+                    j++;
+                }
+                neighbors[uidx] = row;
+                similarities[uidx] = sims;
+            }
+        });
+
+        return new UserSimilarityIndex(k, neighbors, similarities);
+    }
+
+    /**
+     * Number of neighbors kept for each user.
+     *
+     * @return K
+     */
+    public int getK() {
+        return k;
+    }
+
+    /**
+     * Number of users in the index.
+     *
+     * @return number of users
+     */
+    public int numUsers() {
+        return neighbors.length;
+    }
+
+    /**
+     * Neighbors of a user, sorted by decreasing similarity.
+     *
+     * @param uidx index of the user
+     * @return indices of the neighbors
+     */
+    public int[] neighbors(int uidx) {
+        return neighbors[uidx];
+    }
+
+    /**
+     * Similarities of the neighbors of a user.
+     *
+     * @param uidx index of the user
+     * @return similarities, in the order of {@link #neighbors(int)}
+     */
+    public float[] similarities(int uidx) {
+        return similarities[uidx];
+    }
+
+    /**
+     * Top-k neighborhood read from the index.
+     *
+     * @param <U> type of the users
+     * @param uIndex user index
+     * @param k size of the neighborhood, not larger than K
+     * @return neighborhood
+     */
+    public <U> UserNeighborhood<U> neighborhood(FastUserIndex<U> uIndex, int k) {
+        return new UserNeighborhood<U>(uIndex, uidx -> {
+            if (uidx < 0) {
+                return Stream.empty();
+            }
+            int n = Math.min(k, neighbors[uidx].length);
+            return IntStream.range(0, n).mapToObj(j -> tuple(neighbors[uidx][j], similarities[uidx][j]));
+        }) {
+        };
+    }
+
+    /**
+     * Fingerprint of preference data: a hash of the items and values of
+     * every user.
+     *
+     * @param data preference data
+     * @return fingerprint
+     */
+    public static long fingerprint(FastPreferenceData<?, ?> data) {
+        long h = data.numUsers();
+        for (int uidx = 0; uidx < data.numUsers(); uidx++) {
+            h = 31 * h + uidx;
+            IntIterator iidxs = data.getUidxIidxs(uidx);
+            DoubleIterator vs = data.getUidxVs(uidx);
+            while (iidxs.hasNext()) {
+                h = 31 * h + iidxs.nextInt();
+                h = 31 * h + Double.doubleToLongBits(vs.nextDouble());
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Saves the index.
+     *
+     * @param path file
+     * @param fingerprint fingerprint of the training data of the index
+     * @throws IOException
+     */
+    public void save(String path, long fingerprint) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)))) {
+            out.writeLong(fingerprint);
+            out.writeInt(neighbors.length);
+            out.writeInt(k);
+            for (int uidx = 0; uidx < neighbors.length; uidx++) {
+                out.writeInt(neighbors[uidx].length);
+                for (int j = 0; j < neighbors[uidx].length; j++) {
+                    out.writeInt(neighbors[uidx][j]);
+                    out.writeFloat(similarities[uidx][j]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads an index saved by {@link #save(String, long)}.
+     *
+     * @param path file
+     * @param fingerprint fingerprint of the training data the index must
+     * have been computed from
+     * @return the index, or null if it was computed from other data
+     * @throws IOException
+     */
+    public static UserSimilarityIndex load(String path, long fingerprint) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+            if (in.readLong() != fingerprint) {
+                return null;
+            }
+            int nUsers = in.readInt();
+            int k = in.readInt();
+            int[][] neighbors = new int[nUsers][];
+            float[][] similarities = new float[nUsers][];
+            for (int uidx = 0; uidx < nUsers; uidx++) {
+                int n = in.readInt();
+                neighbors[uidx] = new int[n];
+                similarities[uidx] = new float[n];
+                for (int j = 0; j < n; j++) {
+                    neighbors[uidx][j] = in.readInt();
+                    similarities[uidx][j] = in.readFloat();
+                }
+            }
+            return new UserSimilarityIndex(k, neighbors, similarities);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.rec.fast;
+
+import es.uam.eps.ir.ranksys.fast.FastRecommendation;
+import es.uam.eps.ir.ranksys.rec.fast.FastRecommender;
+import java.util.function.IntPredicate;
+
+/**
+ * Fast recommender which can rank an explicit set of candidate items,
+ * scoring only the candidates. This pays off when the candidates are a small
+ * part of the catalog, as with small target sets.
+ *
+ * <p>
+ * The recommendation is the same as that of
+ * {@link FastRecommender#getRecommendation(int, int, IntPredicate)}
+ * with a filter accepting exactly the candidates: candidates the recommender
+ * cannot score are left out, and the order and the scores are the same.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ *
+ * @param <U> type of the users
+ * @param <I> type of the items
+ */
+public interface FastCandidateRecommender<U, I> extends FastRankedRecommender<U, I> {
+
+    /**
+     * Recommendation of a set of candidate items.
+     *
+     * @param uidx index of the user
+     * @param candidates distinct indices of the candidate items
+     * @param maxLength maximum length of the recommendation
+     * @param ranking list where the recommendation is written, after
+     * clearing it
+     */
+    void getRanking(int uidx, int[] candidates, int maxLength, RankedList ranking);
+
+    /**
+     * Recommendation of a set of candidate items.
+     *
+     * @param uidx index of the user
+     * @param candidates distinct indices of the candidate items
+     * @param maxLength maximum length of the recommendation
+     * @return recommendation
+     */
+    default FastRecommendation getRecommendation(int uidx, int[] candidates, int maxLength) {
+        RankedList ranking = new RankedList();
+        getRanking(uidx, candidates, maxLength, ranking);
+        return new FastRecommendation(uidx, ranking.toList());
+    }
+}
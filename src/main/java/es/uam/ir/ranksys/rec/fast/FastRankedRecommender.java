@@ -0,0 +1,38 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.rec.fast;
+
+import es.uam.eps.ir.ranksys.rec.fast.FastRecommender;
+import java.util.function.IntPredicate;
+
+/**
+ * Fast recommender which can write its recommendations into a reusable
+ * {@link RankedList}, so that ranking a user does no boxing and no
+ * allocation per item.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ *
+ * @param <U> type of the users
+ * @param <I> type of the items
+ */
+public interface FastRankedRecommender<U, I> extends FastRecommender<U, I> {
+
+    /**
+     * Recommendation of the items accepted by a filter, as in
+     * {@link FastRecommender#getRecommendation(int, int, IntPredicate)}.
+     *
+     * @param uidx index of the user
+     * @param maxLength maximum length of the recommendation
+     * @param filter filter of the items to recommend
+     * @param ranking list where the recommendation is written, after
+     * clearing it
+     */
+    void getRanking(int uidx, int maxLength, IntPredicate filter, RankedList ranking);
+}
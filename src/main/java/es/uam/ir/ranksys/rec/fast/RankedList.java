@@ -0,0 +1,121 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.rec.fast;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.ranksys.core.util.tuples.Tuple2id;
+
+/**
+ * Ranking of items with their scores, on primitive arrays. A list is meant
+ * to be reused: clearing it keeps its arrays, which only grow.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public class RankedList {
+
+    private int[] iidxs;
+    private double[] scores;
+    private int size = 0;
+
+    /**
+     * Empty list.
+     */
+    public RankedList() {
+        this(16);
+    }
+
+    /**
+     * Empty list.
+     *
+     * @param capacity initial capacity
+     */
+    public RankedList(int capacity) {
+        this.iidxs = new int[Math.max(capacity, 1)];
+        this.scores = new double[Math.max(capacity, 1)];
+    }
+
+    /**
+     * Removes all the items.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Appends an item at the end of the ranking.
+     *
+     * @param iidx index of the item
+     * @param score score of the item
+     */
+    public void add(int iidx, double score) {
+        if (size == iidxs.length) {
+            iidxs = Arrays.copyOf(iidxs, 2 * size);
+            scores = Arrays.copyOf(scores, 2 * size);
+        }
+        iidxs[size] = iidx;
+        scores[size] = score;
+        size++;
+    }
+
+    /**
+     * Appends the items of a list of RankSys tuples.
+     *
+     * @param items items with their scores, in ranking order
+     */
+    public void addAll(List<Tuple2id> items) {
+        for (Tuple2id is : items) {
+            add(is.v1, is.v2);
+        }
+    }
+
+    /**
+     * Number of items in the ranking.
+     *
+     * @return number of items
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Item at a position of the ranking.
+     *
+     * @param i position, from 0
+     * @return index of the item
+     */
+    public int iidx(int i) {
+        return iidxs[i];
+    }
+
+    /**
+     * Score of the item at a position of the ranking.
+     *
+     * @param i position, from 0
+     * @return score of the item
+     */
+    public double score(int i) {
+        return scores[i];
+    }
+
+    /**
+     * Copy of the ranking as a list of RankSys tuples.
+     *
+     * @return items with their scores, in ranking order
+     */
+    public List<Tuple2id> toList() {
+        List<Tuple2id> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(new Tuple2id(iidxs[i], scores[i]));
+        }
+        return list;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.rec.fast;
+
+/**
+ * Selection of the top-n items by score, on a bounded min-heap of primitive
+ * arrays. Items are ordered by score and then by index, as in
+ * {@link es.uam.eps.ir.ranksys.fast.utils.topn.IntDoubleTopN}, so that the
+ * selection and the ranking are the same as those of RankSys. A heap is
+ * meant to be reused: resetting it keeps its arrays, which only grow.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public class TopN {
+
+    private int[] keys = new int[16];
+    private double[] values = new double[16];
+    private int capacity = 0;
+    private int size = 0;
+
+    /**
+     * Empties the heap and sets the number of items to select.
+     *
+     * @param capacity number of items to select
+     */
+    public void reset(int capacity) {
+        if (capacity > keys.length) {
+            keys = new int[capacity];
+            values = new double[capacity];
+        }
+        this.capacity = capacity;
+        this.size = 0;
+    }
+
+    /**
+     * Offers an item to the selection.
+     *
+     * @param iidx index of the item
+     * @param score score of the item
+     */
+    public void add(int iidx, double score) {
+        if (size < capacity) {
+            keys[size] = iidx;
+            values[size] = score;
+            siftUp(size++);
+        } else if (size > 0 && compare(iidx, score, 0) > 0) {
+            keys[0] = iidx;
+            values[0] = score;
+            siftDown(0, size);
+        }
+    }
+
+    /**
+     * Number of items selected so far.
+     *
+     * @return number of items
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Appends the selected items to a ranking, by decreasing score, and
+     * empties the heap.
+     *
+     * @param ranking ranking to append the items to
+     */
+    public void drainTo(RankedList ranking) {
+        // Heap sort: the minimum goes to the end, leaving a decreasing order
+        for (int n = size - 1; n > 0; n--) {
+            swap(0, n);
+            siftDown(0, n);
+        }
+        for (int i = 0; i < size; i++) {
+            ranking.add(keys[i], values[i]);
+        }
+        size = 0;
+    }
+
+    private int compare(int i, int j) {
+        return compare(keys[i], values[i], j);
+    }
+
+    private int compare(int key, double value, int j) {
+        int c = Double.compare(value, values[j]);
+        return c != 0 ? c : Integer.compare(key, keys[j]);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (compare(i, parent) >= 0) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i, int n) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= n) {
+                return;
+            }
+            if (child + 1 < n && compare(child + 1, child) < 0) {
+                child++;
+            }
+            if (compare(child, i) >= 0) {
+                return;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int k = keys[i];
+        keys[i] = keys[j];
+        keys[j] = k;
+        double v = values[i];
+        values[i] = values[j];
+        values[j] = v;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.rec.fast.basic;
+
+import es.uam.eps.ir.ranksys.fast.FastRecommendation;
+import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
+import es.uam.eps.ir.ranksys.rec.fast.AbstractFastRecommender;
+import es.uam.ir.ranksys.rec.fast.FastCandidateRecommender;
+import es.uam.ir.ranksys.rec.fast.RankedList;
+import es.uam.ir.ranksys.rec.fast.TopN;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntPredicate;
+import org.ranksys.core.util.tuples.Tuple2id;
+
+/**
+ * Non-personalized recommender that returns the items of a fixed list, in
+ * the order of the list. The position of each item in the list is kept, so
+ * that the top of a set of candidate items is selected by looking up their
+ * positions on a small heap, in O(|candidates| log maxLength), instead of
+ * scanning the list.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ *
+ * @param <U> type of the users
+ * @param <I> type of the items
+ */
+public abstract class AbstractListRecommender<U, I> extends AbstractFastRecommender<U, I> implements FastCandidateRecommender<U, I> {
+
+    private final int[] listIidxs;
+    private final double[] listScores;
+    private final int[] rankOf;
+    private final ThreadLocal<TopN> heaps = ThreadLocal.withInitial(TopN::new);
+    private final ThreadLocal<RankedList> tops = ThreadLocal.withInitial(RankedList::new);
+
+    /**
+     * Constructor.
+     *
+     * @param uIndex fast user index
+     * @param iIndex fast item index
+     * @param popList items to recommend, with their scores, in order
+     */
+    protected AbstractListRecommender(FastUserIndex<U> uIndex, FastItemIndex<I> iIndex, List<Tuple2id> popList) {
+        super(uIndex, iIndex);
+        this.listIidxs = new int[popList.size()];
+        this.listScores = new double[popList.size()];
+        this.rankOf = new int[iIndex.numItems()];
+        Arrays.fill(rankOf, -1);
+        for (int r = 0; r < popList.size(); r++) {
+            listIidxs[r] = popList.get(r).v1;
+            listScores[r] = popList.get(r).v2;
+            rankOf[listIidxs[r]] = r;
+        }
+    }
+
+    @Override
+    public FastRecommendation getRecommendation(int uidx, int maxLength, IntPredicate filter) {
+        RankedList ranking = new RankedList();
+        getRanking(uidx, maxLength, filter, ranking);
+        return new FastRecommendation(uidx, ranking.toList());
+    }
+
+    @Override
+    public void getRanking(int uidx, int maxLength, IntPredicate filter, RankedList ranking) {
+        ranking.clear();
+        for (int r = 0; r < listIidxs.length && ranking.size() < maxLength; r++) {
+            if (filter.test(listIidxs[r])) {
+                ranking.add(listIidxs[r], listScores[r]);
+            }
+        }
+    }
+
+    @Override
+    public void getRanking(int uidx, int[] candidates, int maxLength, RankedList ranking) {
+        // The best ranks are the top scores of the heap with the rank negated
+        TopN topN = heaps.get();
+        topN.reset(Math.min(maxLength, candidates.length));
+        for (int iidx : candidates) {
+            int r = rankOf[iidx];
+            if (r >= 0) {
+                topN.add(r, -r);
+            }
+        }
+        RankedList topRanks = tops.get();
+        topRanks.clear();
+        topN.drainTo(topRanks);
+
+        ranking.clear();
+        for (int i = 0; i < topRanks.size(); i++) {
+            int r = topRanks.iidx(i);
+            ranking.add(listIidxs[r], listScores[r]);
+        }
+    }
+}
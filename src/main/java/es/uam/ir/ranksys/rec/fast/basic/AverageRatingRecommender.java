@@ -8,16 +8,12 @@
 */
 package es.uam.ir.ranksys.rec.fast.basic;
 
-import es.uam.eps.ir.ranksys.fast.FastRecommendation;
 import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
-import es.uam.eps.ir.ranksys.rec.fast.AbstractFastRecommender;
 import static java.util.Comparator.comparingDouble;
 import java.util.List;
-import java.util.function.IntPredicate;
 import static java.util.stream.Collectors.toList;
 import org.ranksys.core.util.tuples.Tuple2id;
 import static org.ranksys.core.util.tuples.Tuples.tuple;
-import static java.lang.Math.min;
 
 /**
  * Average rating recommender. Non-personalized recommender that returns the
@@ -30,9 +26,7 @@ import static java.lang.Math.min;
  * @param <U> type of the users
  * @param <I> type of the items
  */
-public class AverageRatingRecommender<U, I> extends AbstractFastRecommender<U, I> {
-
-    private final List<Tuple2id> popList;
+public class AverageRatingRecommender<U, I> extends AbstractListRecommender<U, I> {
 
     /**
      * Constructor.
@@ -42,24 +36,15 @@ public class AverageRatingRecommender<U, I> extends AbstractFastRecommender<U, I
      * threshold are considered relevant
      */
     public AverageRatingRecommender(FastPreferenceData<U, I> data, double threshold) {
-        super(data, data);
+        super(data, data, popList(data, threshold));
+    }
 
+    private static <U, I> List<Tuple2id> popList(FastPreferenceData<U, I> data, double threshold) {
         double p = data.getAllUsers().mapToDouble(user -> data.getUserPreferences(user).filter(up -> up.v2 >= threshold).count()).sum() / data.numPreferences();
         double mu = 1;
-        popList = data.getIidxWithPreferences()
+        return data.getIidxWithPreferences()
                 .mapToObj(iidx -> tuple(iidx, (data.getIidxPreferences(iidx).filter(ip -> ip.v2 >= threshold).count() + mu * p) * 1.0 / (data.numUsers(iidx) + mu)))
                 .sorted(comparingDouble(Tuple2id::v2).reversed())
                 .collect(toList());
     }
-
-    @Override
-    public FastRecommendation getRecommendation(int uidx, int maxLength, IntPredicate filter) {
-
-        List<Tuple2id> items = popList.stream()
-                .filter(is -> filter.test(is.v1))
-                .limit(min(maxLength, popList.size()))
-                .collect(toList());
-
-        return new FastRecommendation(uidx, items);
-    }
-}
\ No newline at end of file
+}
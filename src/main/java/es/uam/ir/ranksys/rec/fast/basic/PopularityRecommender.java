@@ -0,0 +1,42 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.rec.fast.basic;
+
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import static java.util.Comparator.comparingDouble;
+import static java.util.stream.Collectors.toList;
+import org.ranksys.core.util.tuples.Tuple2id;
+import static org.ranksys.core.util.tuples.Tuples.tuple;
+
+/**
+ * Popularity-based recommender. Non-personalized recommender that returns
+ * the items with the most ratings, according to the preference data
+ * provided, as in
+ * {@link es.uam.eps.ir.ranksys.rec.fast.basic.PopularityRecommender}.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ *
+ * @param <U> type of the users
+ * @param <I> type of the items
+ */
+public class PopularityRecommender<U, I> extends AbstractListRecommender<U, I> {
+
+    /**
+     * Constructor.
+     *
+     * @param data preference data
+     */
+    public PopularityRecommender(FastPreferenceData<U, I> data) {
+        super(data, data, data.getIidxWithPreferences()
+                .mapToObj(iidx -> tuple(iidx, (double) data.numUsers(iidx)))
+                .sorted(comparingDouble(Tuple2id::v2).reversed())
+                .collect(toList()));
+    }
+}
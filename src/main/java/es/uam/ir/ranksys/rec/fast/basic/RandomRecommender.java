@@ -13,22 +13,30 @@ import es.uam.eps.ir.ranksys.fast.FastRecommendation;
 import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
 import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
 import es.uam.eps.ir.ranksys.rec.fast.AbstractFastRecommender;
+import es.uam.ir.ranksys.rec.fast.FastCandidateRecommender;
+import es.uam.ir.ranksys.rec.fast.RankedList;
+import es.uam.ir.util.RandomStreams;
 import static java.lang.Double.NaN;
-import java.util.ArrayList;
-import java.util.Collections;
-import static java.util.Collections.shuffle;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 import java.util.function.IntPredicate;
 import static java.util.stream.Collectors.toList;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
-import org.ranksys.core.util.tuples.Tuple2id;
 import org.ranksys.core.util.tuples.Tuple2od;
 
 /**
  * Random recommender. It provides non-personalized recommendations without by
- * extracting a sequence of a shuffled list of the items.
+ * extracting a sequence of a shuffled list of the items. The shuffle and the
+ * starting point of each user's sequence are drawn from reproducible random
+ * streams derived from a seed, so no generator is shared between threads.
+ *
+ * <p>
+ * The shuffled list is a permutation of the item indices, with the position
+ * of each item, so that a set of candidate items is ranked by sorting the
+ * candidates by their position in the user's sequence, without scanning the
+ * rest of the catalog.
  *
  * @author Rocío Cañamares
  * @author Pablo Castells
@@ -36,68 +44,164 @@ import org.ranksys.core.util.tuples.Tuple2od;
  * @param <U> type of the users
  * @param <I> type of the items
  */
-public class RandomRecommender<U, I> extends AbstractFastRecommender<U, I> {
+public class RandomRecommender<U, I> extends AbstractFastRecommender<U, I> implements FastCandidateRecommender<U, I> {
 
-    private final static Random random = new Random();
-    private final List<Tuple2id> randomList;
+    private final long streams;
+    private final int[] permutation;
+    private final int[] positions;
+    private final ThreadLocal<long[]> keys = ThreadLocal.withInitial(() -> new long[0]);
 
     /**
      * Constructor.
      *
      * @param uIndex fast user index
      * @param iIndex fast item index
+     * @param seed seed of the random streams
      */
-    public RandomRecommender(FastUserIndex<U> uIndex, FastItemIndex<I> iIndex) {
+    public RandomRecommender(FastUserIndex<U> uIndex, FastItemIndex<I> iIndex, long seed) {
         super(uIndex, iIndex);
+        this.streams = RandomStreams.seed(seed);
 
-        randomList = iIndex.getAllIidx()
-                .mapToObj(iidx -> new Tuple2id(iidx, Double.NaN))
-                .collect(toList());
+        // Same permutation as Collections.shuffle of the list of items
+        permutation = iIndex.getAllIidx().toArray();
+        Random random = new Random(seed);
+        for (int i = permutation.length; i > 1; i--) {
+            int j = random.nextInt(i);
+            int iidx = permutation[i - 1];
+            permutation[i - 1] = permutation[j];
+            permutation[j] = iidx;
+        }
 
-        shuffle(randomList, random);
+        positions = new int[iIndex.numItems()];
+        for (int j = 0; j < permutation.length; j++) {
+            positions[permutation[j]] = j;
+        }
+    }
+
+    /**
+     * Seed of the random stream of a key, from which further streams can be
+     * derived with {@link RandomStreams#key}.
+     *
+     * @param key key of the stream, typically a user index
+     * @return seed of the stream
+     */
+    public long stream(long key) {
+        return RandomStreams.key(streams, key);
+    }
+
+    /**
+     * Starting point of a sequence in the permutation, drawn from a random
+     * stream.
+     */
+    private int start(long stream) {
+        return RandomStreams.nextInt(stream, permutation.length);
     }
 
     @Override
     public FastRecommendation getRecommendation(int uidx, int maxLength, IntPredicate filter) {
+        RankedList ranking = new RankedList();
+        getRanking(uidx, maxLength, filter, ranking);
+        return new FastRecommendation(uidx, ranking.toList());
+    }
+
+    @Override
+    public void getRanking(int uidx, int maxLength, IntPredicate filter, RankedList ranking) {
+        walk(start(stream(uidx)), maxLength, filter, ranking);
+    }
+
+    @Override
+    public void getRanking(int uidx, int[] candidates, int maxLength, RankedList ranking) {
+        order(start(stream(uidx)), candidates, candidates.length, maxLength, ranking);
+    }
+
+    /**
+     * Random ranking of the items accepted by a filter, from a sequence drawn
+     * from a random stream derived from that of a user with
+     * {@link RandomStreams#key}, so that independent sequences can be drawn
+     * for the same user.
+     *
+     * @param stream seed of the random stream
+     * @param maxLength maximum length of the ranking
+     * @param filter filter of the items
+     * @param ranking list where the ranking is written, after clearing it
+     */
+    public void getRanking(long stream, int maxLength, IntPredicate filter, RankedList ranking) {
+        walk(start(stream), maxLength, filter, ranking);
+    }
+
+    /**
+     * Random ranking of a set of candidate items, from a sequence drawn from
+     * a random stream instead of that of a user.
+     *
+     * @param stream seed of the random stream
+     * @param candidates array starting with distinct indices of the candidate
+     * items
+     * @param nCandidates number of candidate items in the array
+     * @param maxLength maximum length of the ranking
+     * @param ranking list where the ranking is written, after clearing it
+     */
+    public void getRanking(long stream, int[] candidates, int nCandidates, int maxLength, RankedList ranking) {
+        order(start(stream), candidates, nCandidates, maxLength, ranking);
+    }
+
+    private void walk(int s, int maxLength, IntPredicate filter, RankedList ranking) {
+        ranking.clear();
         if (maxLength == 0) {
-            maxLength = randomList.size();
+            maxLength = permutation.length;
         }
 
-        List<Tuple2id> recommended = new ArrayList<>();
-        int s = random.nextInt(randomList.size());
         int j = s;
-        for (int i = 0; i < maxLength; i++) {
-            Tuple2id iv = randomList.get(j);
-            while (!filter.test(iv.v1)) {
-                j = (j + 1) % randomList.size();
-                iv = randomList.get(j);
-                if (s == j) {
-                    return new FastRecommendation(uidx, recommended);
-                }
-            }
-            recommended.add(iv);
-            j = (j + 1) % randomList.size();
-            if (s == j) {
-                break;
+        do {
+            int iidx = permutation[j];
+            if (filter.test(iidx)) {
+                ranking.add(iidx, NaN);
             }
+            j = j + 1 < permutation.length ? j + 1 : 0;
+        } while (j != s && ranking.size() < maxLength);
+    }
+
+    private void order(int s, int[] candidates, int nCandidates, int maxLength, RankedList ranking) {
+        ranking.clear();
+        if (maxLength == 0) {
+            maxLength = nCandidates;
+        }
+
+        // Candidates sorted by their offset in the sequence
+        int n = permutation.length;
+        long[] sorted = keys.get();
+        if (sorted.length < nCandidates) {
+            sorted = new long[nCandidates];
+            keys.set(sorted);
+        }
+        for (int i = 0; i < nCandidates; i++) {
+            int offset = positions[candidates[i]] - s;
+            sorted[i] = ((long) (offset < 0 ? offset + n : offset) << 32) | candidates[i];
+        }
+        Arrays.sort(sorted, 0, nCandidates);
+
+        for (int i = 0; i < nCandidates && i < maxLength; i++) {
+            ranking.add((int) sorted[i], NaN);
         }
-        return new FastRecommendation(uidx, recommended);
     }
 
     @Override
     public Recommendation<U, I> getRecommendation(U u, Stream<I> candidates) {
-        List<Tuple2od<I>> items = candidates.map(i -> new Tuple2od<>(i, NaN)).collect(toList());
-        Collections.shuffle(items, random);
+        FastRecommendation recommendation = getRecommendation(user2uidx(u), candidates.mapToInt(this::item2iidx));
+        List<Tuple2od<I>> items = recommendation.getIidxs().stream()
+                .map(iv -> new Tuple2od<>(iidx2item(iv.v1), iv.v2))
+                .collect(toList());
 
         return new Recommendation<>(u, items);
     }
 
     @Override
     public FastRecommendation getRecommendation(int uidx, IntStream candidates) {
-        List<Tuple2id> items = candidates.mapToObj(iidx -> new Tuple2id(iidx, NaN)).collect(toList());
-        Collections.shuffle(items, random);
+        // Candidates ordered as in the sequence of the user, leaving out unknown items
+        RankedList ranking = new RankedList();
+        int[] iidxs = candidates.filter(iidx -> iidx >= 0).toArray();
+        order(start(stream(uidx)), iidxs, iidxs.length, 0, ranking);
 
-        return new FastRecommendation(uidx, items);
+        return new FastRecommendation(uidx, ranking.toList());
     }
 
 }
@@ -0,0 +1,145 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.rec.runner.fast;
+
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import java.util.Arrays;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+/**
+ * Candidate items of the users of a fold for each target size: the items of
+ * the target set of the user that are not in train. The candidates and the
+ * train items of each user are materialized once per fold as
+ * {@link IidxSet}, so that the filters of the recommenders and the filler
+ * are plain lookups, and the expected intersection ratio follows from the
+ * number of candidates of each user, without iterating the catalog.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ *
+ * @param <U> type of the users
+ * @param <I> type of the items
+ */
+public class CandidateIndex<U, I> {
+
+    /**
+     * Sets of candidates smaller than this fraction of the catalog are
+     * processed candidate by candidate, both to score and to fill the
+     * recommendations; larger sets are processed by filtering the catalog.
+     */
+    public static final int CANDIDATE_RATIO = 8;
+
+    private final FastPreferenceData<U, I> trainData;
+    private final IidxSet[] train;
+    private final IidxSet[][] candidates;
+
+    /**
+     * Constructor. The target sets of each size are only used while the
+     * index is built.
+     *
+     * @param trainData training data
+     * @param nSizes number of target sizes
+     * @param targetSets target sets of all the users, for the index of a
+     * target size
+     */
+    public CandidateIndex(FastPreferenceData<U, I> trainData, int nSizes, IntFunction<Function<U, IidxSet>> targetSets) {
+        this.trainData = trainData;
+        int nUsers = trainData.numUsers();
+        int nItems = trainData.numItems();
+
+        this.train = new IidxSet[nUsers];
+        IntStream.range(0, nUsers).parallel().forEach(uidx -> {
+            train[uidx] = IidxSet.ofUnsorted(trainData.getUidxPreferences(uidx).mapToInt(iv -> iv.v1).distinct().toArray(), nItems);
+        });
+
+        this.candidates = new IidxSet[nSizes][nUsers];
+        for (int s = 0; s < nSizes; s++) {
+            Function<U, IidxSet> sets = targetSets.apply(s);
+            IidxSet[] sizeCandidates = candidates[s];
+            IntStream.range(0, nUsers).parallel().forEach(uidx -> {
+                IidxSet targetSet = sets.apply(trainData.uidx2user(uidx));
+                IidxSet trainSet = train[uidx];
+                int[] iidxs = new int[targetSet.size()];
+                int[] n = new int[1];
+                targetSet.forEach(iidx -> {
+                    if (!trainSet.test(iidx)) {
+                        iidxs[n[0]++] = iidx;
+                    }
+                });
+                sizeCandidates[uidx] = IidxSet.of(n[0] == iidxs.length ? iidxs : Arrays.copyOf(iidxs, n[0]), nItems);
+            });
+        }
+    }
+
+    /**
+     * Whether a set of candidates is small enough to be processed candidate
+     * by candidate.
+     *
+     * @param nCandidates number of candidates
+     * @param nItems number of items in the catalog
+     * @return true if the set is smaller than 1 / {@link #CANDIDATE_RATIO}
+     * of the catalog
+     */
+    public static boolean isSmall(int nCandidates, int nItems) {
+        return (long) nCandidates * CANDIDATE_RATIO < nItems;
+    }
+
+    /**
+     * Number of target sizes.
+     *
+     * @return number of target sizes
+     */
+    public int numSizes() {
+        return candidates.length;
+    }
+
+    /**
+     * Candidate items of a user for a target size.
+     *
+     * @param s index of the target size
+     * @param user user
+     * @return items of the target set of the user not in train
+     */
+    public IidxSet candidates(int s, U user) {
+        return candidates[s][trainData.user2uidx(user)];
+    }
+
+    /**
+     * Expected intersection ratio in the top n for a target size: for each
+     * user with training data, the fraction of its candidates that fit in a
+     * list of length n (1 if it has none), summed and divided by the number
+     * of users.
+     *
+     * @param s index of the target size
+     * @param n length of the recommendation lists
+     * @return expected intersection ratio
+     */
+    public double expectedIntersectionRatio(int s, int n) {
+        return trainData.getUidxWithPreferences()
+                .mapToDouble(uidx -> {
+                    int nu = candidates[s][uidx].size();
+                    return nu == 0 ? 1 : Math.min(nu, n) * 1.0 / nu;
+                }).sum() / trainData.numUsers();
+    }
+
+    /**
+     * Filter of the items not in train.
+     *
+     * @return for each user, a filter accepting the items not in its train
+     */
+    public Function<U, IntPredicate> notInTrain() {
+        return user -> {
+            IidxSet trainSet = train[trainData.user2uidx(user)];
+            return iidx -> !trainSet.test(iidx);
+        };
+    }
+}
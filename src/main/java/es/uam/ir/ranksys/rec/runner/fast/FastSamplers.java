@@ -11,26 +11,22 @@ package es.uam.ir.ranksys.rec.runner.fast;
 import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
 import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
 import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import it.unimi.dsi.fastutil.ints.IntIterator;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import it.unimi.dsi.fastutil.ints.IntSet;
-import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintStream;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Map;
-import java.util.Random;
+import java.util.SplittableRandom;
 import java.util.function.Function;
-import java.util.function.IntFunction;
 import java.util.function.IntPredicate;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import java.util.stream.Collectors;
-import org.ranksys.formats.parsing.Parser;
+import es.uam.ir.util.RandomStreams;
 
 /**
+ * Target samplers. Every sampler takes a seed, from which an independent
+ * random stream is derived for each user, so that samples can be drawn in
+ * parallel and the same seed always gives the same sample.
  *
  * @author Rocío Cañamares
  * @author Pablo Castells
@@ -38,145 +34,319 @@ import org.ranksys.formats.parsing.Parser;
  */
 public class FastSamplers {
 
-    static Random rnd = new Random();
-
     /**
-     * 
+     * Writes the target sets of a sample in the binary format of
+     * {@link SamplerFile}.
+     *
      * @param <U>
      * @param <I>
-     * @param sampler
-     * @param trainData
+     * @param targetSets
+     * @param userIndex
      * @param itemIndex
+     * @param key
      * @param outputPath
-     * @throws FileNotFoundException 
+     * @throws IOException 
      */
-    public static <U, I> void write(Function<U, IntPredicate> sampler, FastPreferenceData<U, I> trainData, FastItemIndex<Long> itemIndex, String outputPath) throws FileNotFoundException{
-        try (PrintStream out = new PrintStream(outputPath)) {
-            trainData.getUsersWithPreferences().map(user -> {
-                IntPredicate userSampler = sampler.apply(user);
-                List<String> itemSet = itemIndex.getAllIidx()
-                        .filter(iidx -> userSampler.test(iidx))
-                        .mapToObj(iidx -> itemIndex.iidx2item(iidx) + "")
-                        .collect(Collectors.toList());
-                return user + ":\n" + String.join("\n", itemSet);
-            }).forEachOrdered(output -> out.println(output));
-        }
+    public static <U, I> void write(Map<U, IidxSet> targetSets, FastUserIndex<U> userIndex, FastItemIndex<I> itemIndex, SamplerFile.Key key, String outputPath) throws IOException {
+        SamplerFile.write(targetSets, userIndex, itemIndex, key, outputPath);
     }
 
     /**
-     * 
+     * Reads a sample written by {@link #write}, through a memory mapping of
+     * the file.
+     *
      * @param <U>
      * @param <I>
      * @param userIndex
      * @param itemIndex
+     * @param key
      * @param dataPath
-     * @param uParser
-     * @param iParser
      * @return 
+     * @throws IOException 
      */
-    public static <U, I> Function<U, IntPredicate> read(
+    public static <U, I> Function<U, IidxSet> read(
             FastUserIndex<U> userIndex,
             FastItemIndex<I> itemIndex,
-            String dataPath,
-            Parser<U> uParser,
-            Parser<I> iParser) {
-        BufferedReader reader = null;
-        try {
-            Map<U, IntSet> mapSets = userIndex.getAllUsers().collect(Collectors.toMap(user -> user, user -> new IntOpenHashSet()));
-            reader = new BufferedReader(new InputStreamReader(new FileInputStream(dataPath)));
-            String line;
-            U u = null;
-            while ((line = reader.readLine()) != null) {
-                if (line.length() < 1)  continue;
-                if (line.endsWith(":")) {
-                    u = uParser.parse(line.replaceAll(":", ""));
-                } else {
-                    mapSets.get(u).add(itemIndex.item2iidx(iParser.parse(line)));
-                }
-            }
-            reader.close();
-            return user -> {
-                IntSet set = mapSets.get(user);
-                return iidx -> set.contains(iidx);
-            };
-        } catch (IOException ex) {
-            Logger.getLogger(FastSamplers.class.getName()).log(Level.SEVERE, null, ex);
+            SamplerFile.Key key,
+            String dataPath) throws IOException {
+        return SamplerFile.read(userIndex, itemIndex, key, dataPath);
+    }
+
+    /**
+     * Uniform sampler: for every user, n items out of those not in the test
+     * set are drawn without replacement with Floyd's algorithm, which costs
+     * O(n log |test|) per user regardless of the size of the catalog.
+     *
+     * @param <U>
+     * @param <I>
+     * @param trainData
+     * @param mapSets
+     * @param n
+     * @param seed
+     * @return 
+     */
+    public static <U, I> Function<U, IntPredicate> uniform(FastPreferenceData<U, I> trainData, Map<U, IidxSet> mapSets, int n, long seed) {
+        return filter(uniformSets(trainData, mapSets, n, seed));
+    }
+
+    /**
+     * Target sets of the uniform sampler: the test items of each user plus n
+     * items drawn uniformly out of the rest.
+     *
+     * @param <U>
+     * @param <I>
+     * @param trainData
+     * @param mapSets
+     * @param n
+     * @param seed
+     * @return 
+     */
+    public static <U, I> Map<U, IidxSet> uniformSets(FastPreferenceData<U, I> trainData, Map<U, IidxSet> mapSets, int n, long seed) {
+        int nItems = trainData.numItems();
+        if (n >= nItems) {
+            IidxSet all = IidxSet.all(nItems);
+            return trainData.getAllUsers().parallel().collect(Collectors.toMap(user -> user, user -> all));
         }
-        return null;
+        return trainData.getAllUsers().parallel().collect(Collectors.toMap(
+                user -> user,
+                user -> {
+                    int[] test = mapSets.get(user).toArray();
+                    SplittableRandom rnd = RandomStreams.of(seed, trainData.user2uidx(user));
+                    return IidxSet.ofUnsorted(floyd(nItems, test, n, rnd), nItems);
+                }));
     }
 
     /**
-     * 
+     * Weighted sampler: for every user, n items out of those not in the test
+     * set are drawn without replacement with probability proportional to
+     * their weight. Draws are done on a Fenwick tree of the weights, so that
+     * each draw and each removal costs O(log numItems). Each thread keeps a
+     * copy of the tree, and the nodes touched by the removals of a user are
+     * restored from the original tree afterwards, so that the cost per user
+     * does not depend on the size of the catalog.
+     *
      * @param <U>
      * @param <I>
      * @param trainData
      * @param mapSets
      * @param n
+     * @param weight weight of each item, indexed by iidx
+     * @param seed
      * @return 
      */
-    public static <U, I> Function<U, IntPredicate> uniform(FastPreferenceData<U, I> trainData, Map<U, IntSet> mapSets, int n) {
-        IntFunction<Double> weight = iidx -> 1.0;
-        return sample(trainData, mapSets, n, weight);
+    public static <U, I> Function<U, IntPredicate> sample(FastPreferenceData<U, I> trainData, Map<U, IidxSet> mapSets, int n, double[] weight, long seed) {
+        return filter(sampleSets(trainData, mapSets, n, weight, seed));
     }
 
     /**
-     * 
+     * Target sets of the weighted sampler: the test items of each user plus n
+     * items drawn out of the rest with probability proportional to their
+     * weight.
+     *
      * @param <U>
      * @param <I>
      * @param trainData
      * @param mapSets
      * @param n
-     * @param weight
+     * @param weight weight of each item, indexed by iidx
+     * @param seed
      * @return 
      */
-    public static <U, I> Function<U, IntPredicate> sample(FastPreferenceData<U, I> trainData, Map<U, IntSet> mapSets, int n, IntFunction<Double> weight) {
-        Map<U, IntSet> mapKSets;
-        if (n >= trainData.numItems()) {
-            IntSet kSet = new IntOpenHashSet();
-            trainData.getAllIidx().filter(iidx -> weight.apply(iidx) > 0).forEach(kSet::add);
-            mapKSets = trainData.getAllUsers().parallel().collect(Collectors.toMap(user -> user, user -> kSet));
-        } else {
-            mapKSets = trainData.getAllUsers().parallel().collect(Collectors.toMap(
+    public static <U, I> Map<U, IidxSet> sampleSets(FastPreferenceData<U, I> trainData, Map<U, IidxSet> mapSets, int n, double[] weight, long seed) {
+        int nItems = trainData.numItems();
+        if (n >= nItems) {
+            return trainData.getAllUsers().parallel().collect(Collectors.toMap(
                     user -> user,
                     user -> {
-                        IntSet testSet = mapSets.get(user);
-
-                        int nItems = trainData.numItems();
-                        double items[] = new double[nItems];
-                        double sum = trainData.getAllIidx()
-                        .filter(iidx -> !testSet.contains(iidx))
-                        .mapToDouble(iidx -> {
-                            items[iidx] = weight.apply(iidx);
-                            return items[iidx];
-                        }).sum();
-
-                        IntSet kSet = new IntOpenHashSet();
-                        for (int i = 0; i < n && sum > 0; i++) {
-                            double p = rnd.nextDouble() * sum;
-                            double acc = 0;
-
-                            int j = 0;
-                            while (acc < p) {
-                                acc += items[j];
-                                j++;
-                            }
-                            j--;
-                            kSet.add(j);
+                        IidxSet testSet = mapSets.get(user);
+                        int[] iidxs = trainData.getAllIidx().filter(iidx -> weight[iidx] > 0 || testSet.test(iidx)).toArray();
+                        return IidxSet.of(iidxs, nItems);
+                    }));
+        }
+
+        double[] tree = fenwick(weight);
+        double total = fenwickSum(tree);
+        ThreadLocal<double[]> trees = ThreadLocal.withInitial(tree::clone);
+        return trainData.getAllUsers().parallel().collect(Collectors.toMap(
+                user -> user,
+                user -> {
+                    IidxSet testSet = mapSets.get(user);
+                    SplittableRandom rnd = RandomStreams.of(seed, trainData.user2uidx(user));
 
-                            sum -= items[j];
-                            items[j] = 0;
+                    double[] userTree = trees.get();
+                    double sum = total;
+                    int[] test = testSet.toArray();
+                    for (int iidx : test) {
+                        if (weight[iidx] > 0) {
+                            fenwickAdd(userTree, iidx, -weight[iidx]);
+                            sum -= weight[iidx];
+                        }
+                    }
 
+                    // Items drawn, and items whose rounding residue in the tree was removed
+                    IntSet removed = new IntOpenHashSet(Math.min(n, nItems));
+                    int[] iidxs = Arrays.copyOf(test, test.length + Math.min(n, nItems));
+                    int k = 0;
+                    while (k < n && sum > 0) {
+                        int j = fenwickFind(userTree, rnd.nextDouble() * sum);
+                        if (j < 0) {
+                            // Rounding residue beyond the last item: the remaining mass is that of the tree
+                            double mass = fenwickSum(userTree);
+                            if (mass >= sum) {
+                                break;
+                            }
+                            sum = mass;
+                            continue;
                         }
-                        return kSet;
-                    }));
+                        double mass = fenwickMass(userTree, j);
+                        fenwickAdd(userTree, j, -mass);
+                        sum -= mass;
+                        if (removed.add(j) && weight[j] > 0 && !testSet.test(j)) {
+                            iidxs[test.length + k++] = j;
+                        }
+                    }
+
+                    // Undo the removals of the user
+                    for (int iidx : test) {
+                        fenwickRestore(userTree, tree, iidx);
+                    }
+                    for (IntIterator it = removed.iterator(); it.hasNext();) {
+                        fenwickRestore(userTree, tree, it.nextInt());
+                    }
+
+                    return IidxSet.ofUnsorted(Arrays.copyOf(iidxs, test.length + k), nItems);
+                }));
+    }
+
+    /**
+     * Nested uniform sampler: one random order of the non-test items per
+     * user, from which the target sets of all sizes are taken as prefixes.
+     *
+     * @param <U>
+     * @param <I>
+     * @param trainData
+     * @param mapSets
+     * @param seed
+     * @return 
+     */
+    public static <U, I> NestedSampler<U, I> nested(FastPreferenceData<U, I> trainData, Map<U, IidxSet> mapSets, long seed) {
+        return new NestedSampler<>(trainData, mapSets, seed);
+    }
+
+    private static <U> Function<U, IntPredicate> filter(Map<U, IidxSet> targetSets) {
+        return user -> targetSets.get(user);
+    }
+
+    /**
+     * Floyd's sampling of n distinct items out of the items in [0, nItems)
+     * which are not in the (sorted) test array. The sampled items are
+     * returned after the test items.
+     */
+    private static int[] floyd(int nItems, int[] test, int n, SplittableRandom rnd) {
+        int nCandidates = nItems - test.length;
+        int[] iidxs = Arrays.copyOf(test, test.length + Math.max(Math.min(n, nCandidates), 0));
+        int k = test.length;
+        if (n >= nCandidates) {
+            for (int r = 0; r < nCandidates; r++) {
+                iidxs[k++] = candidate(r, test);
+            }
+            return iidxs;
+        }
+
+        IntSet ranks = new IntOpenHashSet(n);
+        for (int j = nCandidates - n; j < nCandidates; j++) {
+            int t = rnd.nextInt(j + 1);
+            int r = ranks.add(t) ? t : j;
+            ranks.add(r);
+            iidxs[k++] = candidate(r, test);
         }
+        return iidxs;
+    }
 
-        return user -> {
-            IntSet testSet = mapSets.get(user);
-            IntSet kSet = mapKSets.get(user);
+    /**
+     * The r-th item (in iidx order) that is not in the sorted test array.
+     * Since test[j] - j items precede test[j], this is r plus the number of
+     * test items with test[j] - j &lt;= r.
+     */
+    private static int candidate(int r, int[] test) {
+        int lo = 0;
+        int hi = test.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (test[mid] - mid <= r) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return r + lo;
+    }
 
-            return iidx -> testSet.contains(iidx) || kSet.contains(iidx);
-        };
+    private static double[] fenwick(double[] weight) {
+        double[] tree = new double[weight.length + 1];
+        for (int i = 1; i <= weight.length; i++) {
+            tree[i] += Math.max(weight[i - 1], 0);
+            int parent = i + (i & -i);
+            if (parent <= weight.length) {
+                tree[parent] += tree[i];
+            }
+        }
+        return tree;
+    }
+
+    private static void fenwickAdd(double[] tree, int iidx, double delta) {
+        for (int i = iidx + 1; i < tree.length; i += i & -i) {
+            tree[i] += delta;
+        }
+    }
+
+    /**
+     * Restores the nodes of a tree touched by the removal of an item from
+     * the original tree, exactly, so that rounding errors do not accumulate
+     * across users.
+     */
+    private static void fenwickRestore(double[] tree, double[] original, int iidx) {
+        for (int i = iidx + 1; i < tree.length; i += i & -i) {
+            tree[i] = original[i];
+        }
+    }
+
+    /**
+     * Mass left in the tree for an item, which is its weight, or a rounding
+     * residue if it has been removed.
+     */
+    private static double fenwickMass(double[] tree, int iidx) {
+        int i = iidx + 1;
+        double mass = tree[i];
+        // Subtract the children of the node, which are the nodes below it that share its prefix
+        for (int child = i - 1, stop = i - (i & -i); child > stop; child -= child & -child) {
+            mass -= tree[child];
+        }
+        return mass;
+    }
+
+    private static double fenwickSum(double[] tree) {
+        double sum = 0;
+        for (int i = tree.length - 1; i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Smallest iidx whose cumulative weight exceeds p, or -1 if p is beyond
+     * the total mass.
+     */
+    private static int fenwickFind(double[] tree, double p) {
+        int pos = 0;
+        for (int step = Integer.highestOneBit(tree.length - 1); step > 0; step >>= 1) {
+            int next = pos + step;
+            if (next < tree.length && tree[next] <= p) {
+                pos = next;
+                p -= tree[next];
+            }
+        }
+        return pos < tree.length - 1 ? pos : -1;
     }
 
     /**
@@ -187,7 +357,7 @@ public class FastSamplers {
     public static class FastSamplersArgument<U, I> {
 
         public FastPreferenceData<U, I> trainData;
-        public Map<U, IntSet> mapSets;
+        public Map<U, IidxSet> mapSets;
         public int n;
 
         /**
@@ -196,7 +366,7 @@ public class FastSamplers {
          * @param mapSets
          * @param n 
          */
-        public FastSamplersArgument(FastPreferenceData<U, I> trainData, Map<U, IntSet> mapSets, int n) {
+        public FastSamplersArgument(FastPreferenceData<U, I> trainData, Map<U, IidxSet> mapSets, int n) {
             this.trainData = trainData;
             this.mapSets = mapSets;
             this.n = n;
@@ -210,16 +380,13 @@ public class FastSamplers {
      * @param testData
      * @return 
      */
-    public static <U, I> Map<U, IntSet> inTestForUser(FastPreferenceData<U, I> testData) {
-        Map<U, IntSet> mapSets = testData.getAllUsers().parallel().collect(Collectors.toMap(
+    public static <U, I> Map<U, IidxSet> inTestForUser(FastPreferenceData<U, I> testData) {
+        Map<U, IidxSet> mapSets = testData.getAllUsers().parallel().collect(Collectors.toMap(
                 user -> user,
-                user -> {
-                    IntSet set = new IntOpenHashSet();
-                    testData.getUidxPreferences(testData.user2uidx(user))
-                    .mapToInt(iv -> iv.v1)
-                    .forEach(set::add);
-                    return set;
-                }));
+                user -> IidxSet.ofUnsorted(testData.getUidxPreferences(testData.user2uidx(user))
+                        .mapToInt(iv -> iv.v1)
+                        .distinct()
+                        .toArray(), testData.numItems())));
 
         return mapSets;
     }
@@ -0,0 +1,224 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.rec.runner.fast;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+/**
+ * Immutable set of item indices. Dense sets are stored as a bitset over the
+ * whole catalog and sparse sets as a sorted array, so that membership tests
+ * are cheap and memory stays proportional to the smaller of both. Members
+ * are always iterated in increasing iidx order.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public abstract class IidxSet implements IntPredicate {
+
+    /**
+     * Sets with at least one member every DENSITY items of the catalog are
+     * stored as bitsets: that is where a bitset takes less memory than an
+     * array of ints.
+     */
+    private static final int DENSITY = Integer.SIZE;
+
+    /**
+     * Builds a set from a sorted array of distinct item indices. The array
+     * is kept by the set if the sparse representation is chosen.
+     *
+     * @param iidxs sorted array of distinct item indices
+     * @param nItems number of items in the catalog
+     * @return set with the given items
+     */
+    public static IidxSet of(int[] iidxs, int nItems) {
+        if ((long) iidxs.length * DENSITY >= nItems) {
+            long[] words = new long[(nItems + Long.SIZE - 1) / Long.SIZE];
+            for (int iidx : iidxs) {
+                words[iidx >>> 6] |= 1L << iidx;
+            }
+            return new Bits(words, iidxs.length);
+        }
+        return new Sorted(iidxs);
+    }
+
+    /**
+     * Builds a set from an unsorted array of distinct item indices.
+     *
+     * @param iidxs array of distinct item indices, which is sorted in place
+     * @param nItems number of items in the catalog
+     * @return set with the given items
+     */
+    public static IidxSet ofUnsorted(int[] iidxs, int nItems) {
+        Arrays.sort(iidxs);
+        return of(iidxs, nItems);
+    }
+
+    /**
+     * Set with all the items of the catalog.
+     *
+     * @param nItems number of items in the catalog
+     * @return set with all the items
+     */
+    public static IidxSet all(int nItems) {
+        long[] words = new long[(nItems + Long.SIZE - 1) / Long.SIZE];
+        Arrays.fill(words, -1L);
+        if (nItems % Long.SIZE != 0) {
+            words[words.length - 1] = (1L << nItems) - 1;
+        }
+        return new Bits(words, nItems);
+    }
+
+    /**
+     * Union of two sets.
+     *
+     * @param a first set
+     * @param b second set
+     * @param nItems number of items in the catalog
+     * @return set with the items in either set
+     */
+    public static IidxSet union(IidxSet a, IidxSet b, int nItems) {
+        int[] x = a.toArray();
+        int[] y = b.toArray();
+        int[] merged = new int[x.length + y.length];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < x.length || j < y.length) {
+            if (j == y.length || (i < x.length && x[i] < y[j])) {
+                merged[n++] = x[i++];
+            } else if (i == x.length || y[j] < x[i]) {
+                merged[n++] = y[j++];
+            } else {
+                merged[n++] = x[i++];
+                j++;
+            }
+        }
+        return of(Arrays.copyOf(merged, n), nItems);
+    }
+
+    /**
+     * Number of items in the set.
+     *
+     * @return number of items in the set
+     */
+    public abstract int size();
+
+    /**
+     * Applies an action to each item in the set, in increasing iidx order.
+     *
+     * @param action action to be applied
+     */
+    public abstract void forEach(IntConsumer action);
+
+    /**
+     * Copies the items in the set to an array, in increasing iidx order,
+     * without allocating.
+     *
+     * @param iidxs array with room for the items in the set
+     * @return number of items copied
+     */
+    public abstract int copyTo(int[] iidxs);
+
+    /**
+     * Sorted array with the items in the set.
+     *
+     * @return sorted array of item indices
+     */
+    public int[] toArray() {
+        int[] iidxs = new int[size()];
+        int[] n = new int[1];
+        forEach(iidx -> iidxs[n[0]++] = iidx);
+        return iidxs;
+    }
+
+    private static final class Bits extends IidxSet {
+
+        private final long[] words;
+        private final int size;
+
+        Bits(long[] words, int size) {
+            this.words = words;
+            this.size = size;
+        }
+
+        @Override
+        public boolean test(int iidx) {
+            int w = iidx >>> 6;
+            return w < words.length && (words[w] & (1L << iidx)) != 0;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public void forEach(IntConsumer action) {
+            for (int w = 0; w < words.length; w++) {
+                long word = words[w];
+                while (word != 0) {
+                    action.accept((w << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        @Override
+        public int copyTo(int[] iidxs) {
+            int n = 0;
+            for (int w = 0; w < words.length; w++) {
+                long word = words[w];
+                while (word != 0) {
+                    iidxs[n++] = (w << 6) + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                }
+            }
+            return n;
+        }
+    }
+
+    private static final class Sorted extends IidxSet {
+
+        private final int[] iidxs;
+
+        Sorted(int[] iidxs) {
+            this.iidxs = iidxs;
+        }
+
+        @Override
+        public boolean test(int iidx) {
+            return Arrays.binarySearch(iidxs, iidx) >= 0;
+        }
+
+        @Override
+        public int size() {
+            return iidxs.length;
+        }
+
+        @Override
+        public void forEach(IntConsumer action) {
+            for (int iidx : iidxs) {
+                action.accept(iidx);
+            }
+        }
+
+        @Override
+        public int copyTo(int[] iidxs) {
+            System.arraycopy(this.iidxs, 0, iidxs, 0, this.iidxs.length);
+            return this.iidxs.length;
+        }
+
+        @Override
+        public int[] toArray() {
+            return iidxs.clone();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.rec.runner.fast;
+
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.ir.util.RandomStreams;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Nested uniform sampler. A single random order of the non-test items is
+ * drawn for each user, and the target set of size n is made of the test
+ * items plus the first n items in that order. All target sizes are thus
+ * served from one structure, and the target set of a size is contained in
+ * the target set of any larger size.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ *
+ * @param <U> type of the users
+ * @param <I> type of the items
+ */
+public class NestedSampler<U, I> {
+
+    private final FastPreferenceData<U, I> trainData;
+    private final int[][] ranks;
+
+    /**
+     *
+     * @param trainData
+     * @param mapSets
+     * @param seed
+     */
+    public NestedSampler(FastPreferenceData<U, I> trainData, Map<U, IidxSet> mapSets, long seed) {
+        this.trainData = trainData;
+        this.ranks = new int[trainData.numUsers()][];
+
+        int nItems = trainData.numItems();
+        IntStream.range(0, trainData.numUsers()).parallel().forEach(uidx -> {
+            IidxSet testSet = mapSets.get(trainData.uidx2user(uidx));
+            SplittableRandom rnd = RandomStreams.of(seed, uidx);
+
+            // Test items get rank -1, so that they pass for every size
+            int[] rank = new int[nItems];
+            int[] order = new int[nItems];
+            int nCandidates = 0;
+            for (int iidx = 0; iidx < nItems; iidx++) {
+                if (testSet.test(iidx)) {
+                    rank[iidx] = -1;
+                } else {
+                    order[nCandidates++] = iidx;
+                }
+            }
+            for (int r = 0; r < nCandidates; r++) {
+                int s = r + rnd.nextInt(nCandidates - r);
+                int iidx = order[s];
+                order[s] = order[r];
+                order[r] = iidx;
+                rank[iidx] = r;
+            }
+            ranks[uidx] = rank;
+        });
+    }
+
+    /**
+     * Sampler for a given target size.
+     *
+     * @param n target size
+     * @return for each user, a filter accepting the test items and the first
+     * n items of the user's random order
+     */
+    public Function<U, IntPredicate> sampler(int n) {
+        return user -> {
+            int[] rank = ranks[trainData.user2uidx(user)];
+            return iidx -> rank[iidx] < n;
+        };
+    }
+
+    /**
+     * Target sets for a given target size, materialized so that their items
+     * can be iterated.
+     *
+     * @param n target size
+     * @return for each user, the test items and the first n items of the
+     * user's random order
+     */
+    public Map<U, IidxSet> targetSets(int n) {
+        int nItems = trainData.numItems();
+        return trainData.getAllUsers().parallel().collect(Collectors.toMap(
+                user -> user,
+                user -> {
+                    int[] rank = ranks[trainData.user2uidx(user)];
+                    if (n >= nItems) {
+                        return IidxSet.all(nItems);
+                    }
+                    int[] iidxs = new int[nItems];
+                    int k = 0;
+                    for (int iidx = 0; iidx < nItems; iidx++) {
+                        if (rank[iidx] < n) {
+                            iidxs[k++] = iidx;
+                        }
+                    }
+                    return IidxSet.of(Arrays.copyOf(iidxs, k), nItems);
+                }));
+    }
+}
@@ -0,0 +1,291 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.rec.runner.fast;
+
+import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+/**
+ * Binary file format for sampled target sets.
+ *
+ * <p>
+ * A file holds the target sets of all the users for one dataset, fold,
+ * target size and seed. It starts with a header (magic number, version,
+ * key, number of users and items, and a fingerprint of the user and item
+ * indices), followed by one offset per user plus an end offset, and the
+ * target set of each user, in uidx order, as a count and the iidx in
+ * increasing order delta-encoded with variable-length bytes.
+ *
+ * <p>
+ * Files are read through a MappedByteBuffer: the header and offsets are
+ * accessed in place and the target set of a user is only decoded the first
+ * time it is requested. Since a single buffer is mapped, files are limited
+ * to {@link #MAX_SIZE} bytes, which is checked both when they are written
+ * and when they are read.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public class SamplerFile {
+
+    private static final int MAGIC = 0x54534d50;
+    private static final int VERSION = 1;
+
+    /**
+     * Maximum size of a sample file, which can be mapped in a single buffer.
+     */
+    public static final long MAX_SIZE = Integer.MAX_VALUE;
+
+    /**
+     * Identifies a sample: dataset, fold, target size and seed.
+     */
+    public static class Key {
+
+        public final String dataset;
+        public final int fold;
+        public final int targetSize;
+        public final long seed;
+
+        /**
+         *
+         * @param dataset
+         * @param fold
+         * @param targetSize
+         * @param seed
+         */
+        public Key(String dataset, int fold, int targetSize, long seed) {
+            this.dataset = dataset;
+            this.fold = fold;
+            this.targetSize = targetSize;
+            this.seed = seed;
+        }
+
+        /**
+         * Name of the file holding the sample.
+         *
+         * @return file name
+         */
+        public String fileName() {
+            return dataset + "-" + fold + "-" + targetSize + "-" + seed + ".samples";
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return dataset.equals(k.dataset) && fold == k.fold && targetSize == k.targetSize && seed == k.seed;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(dataset, fold, targetSize, seed);
+        }
+
+        @Override
+        public String toString() {
+            return "dataset=" + dataset + ", fold=" + fold + ", target size=" + targetSize + ", seed=" + seed;
+        }
+    }
+
+    /**
+     * Writes the target sets of a sample. The target sets are streamed to
+     * the file after room for the offsets, and the offsets are written once
+     * the target sets are done.
+     *
+     * @param <U>
+     * @param <I>
+     * @param targetSets target set of each user
+     * @param userIndex
+     * @param itemIndex
+     * @param key
+     * @param outputPath
+     * @throws IOException if the file cannot be written, or would exceed
+     * {@link #MAX_SIZE} bytes
+     */
+    public static <U, I> void write(Map<U, IidxSet> targetSets, FastUserIndex<U> userIndex, FastItemIndex<I> itemIndex, Key key, String outputPath) throws IOException {
+        int nUsers = userIndex.numUsers();
+        long[] offsets = new long[nUsers + 1];
+        byte[] dataset = key.dataset.getBytes(StandardCharsets.UTF_8);
+        long offsetsStart = 4 + 4 + 2 + dataset.length + 4 + 4 + 8 + 4 + 4 + 8;
+        long dataStart = offsetsStart + (long) (nUsers + 1) * Long.BYTES;
+        if (dataStart > MAX_SIZE) {
+            throw new IOException("The sample for " + key + " exceeds the maximum size of a sample file");
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(outputPath, "rw")) {
+            file.setLength(0);
+            file.seek(dataStart);
+            // Not closed here: closing it would close the file
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(file.getChannel())));
+            for (int uidx = 0; uidx < nUsers; uidx++) {
+                offsets[uidx] = data.size();
+                IidxSet set = targetSets.get(userIndex.uidx2user(uidx));
+                if (set == null) {
+                    writeVarInt(data, 0);
+                    continue;
+                }
+                writeVarInt(data, set.size());
+                int prev = 0;
+                for (int iidx : set.toArray()) {
+                    writeVarInt(data, iidx - prev);
+                    prev = iidx;
+                }
+                if (dataStart + data.size() > MAX_SIZE) {
+                    throw new IOException("The sample for " + key + " exceeds the maximum size of a sample file");
+                }
+            }
+            offsets[nUsers] = data.size();
+            data.flush();
+
+            file.seek(0);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(file.getChannel())));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeShort(dataset.length);
+            out.write(dataset);
+            out.writeInt(key.fold);
+            out.writeInt(key.targetSize);
+            out.writeLong(key.seed);
+            out.writeInt(nUsers);
+            out.writeInt(itemIndex.numItems());
+            out.writeLong(fingerprint(userIndex, itemIndex));
+            for (long offset : offsets) {
+                out.writeLong(offset);
+            }
+            out.flush();
+        } catch (IOException ex) {
+            new File(outputPath).delete();
+            throw ex;
+        }
+    }
+
+    /**
+     * Maps a sample file and checks that it matches the given key and
+     * indices.
+     *
+     * @param <U>
+     * @param <I>
+     * @param userIndex
+     * @param itemIndex
+     * @param key expected key of the sample
+     * @param path
+     * @return target set of each user, decoded on first access
+     * @throws IOException if the file cannot be read, exceeds
+     * {@link #MAX_SIZE} bytes, or was written for a different key or
+     * different indices
+     */
+    public static <U, I> Function<U, IidxSet> read(FastUserIndex<U> userIndex, FastItemIndex<I> itemIndex, Key key, String path) throws IOException {
+        MappedByteBuffer buffer;
+        try (RandomAccessFile file = new RandomAccessFile(path, "r");
+                FileChannel channel = file.getChannel()) {
+            if (channel.size() > MAX_SIZE) {
+                throw new IOException(path + " exceeds the maximum size of a sample file");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        int pos = 0;
+        if (buffer.getInt(pos) != MAGIC || buffer.getInt(pos + 4) != VERSION) {
+            throw new IOException(path + " is not a sample file");
+        }
+        pos += 8;
+        byte[] dataset = new byte[buffer.getShort(pos)];
+        pos += 2;
+        for (int i = 0; i < dataset.length; i++) {
+            dataset[i] = buffer.get(pos++);
+        }
+        Key fileKey = new Key(new String(dataset, StandardCharsets.UTF_8), buffer.getInt(pos), buffer.getInt(pos + 4), buffer.getLong(pos + 8));
+        pos += 16;
+        if (!fileKey.equals(key)) {
+            throw new IOException(path + " holds the sample for " + fileKey + ", not for " + key);
+        }
+        int nUsers = buffer.getInt(pos);
+        int nItems = buffer.getInt(pos + 4);
+        long fingerprint = buffer.getLong(pos + 8);
+        pos += 16;
+        if (nUsers != userIndex.numUsers() || nItems != itemIndex.numItems() || fingerprint != fingerprint(userIndex, itemIndex)) {
+            throw new IOException(path + " was written with different user or item indices");
+        }
+
+        int offsetsStart = pos;
+        int dataStart = offsetsStart + (nUsers + 1) * Long.BYTES;
+        AtomicReferenceArray<IidxSet> sets = new AtomicReferenceArray<>(nUsers);
+        return user -> {
+            int uidx = userIndex.user2uidx(user);
+            IidxSet set = sets.get(uidx);
+            if (set == null) {
+                set = decode(buffer, dataStart + (int) buffer.getLong(offsetsStart + uidx * Long.BYTES), nItems);
+                sets.lazySet(uidx, set);
+            }
+            return set;
+        };
+    }
+
+    private static IidxSet decode(ByteBuffer buffer, int pos, int nItems) {
+        int[] cursor = {pos};
+        int[] iidxs = new int[readVarInt(buffer, cursor)];
+        int iidx = 0;
+        for (int i = 0; i < iidxs.length; i++) {
+            iidx += readVarInt(buffer, cursor);
+            iidxs[i] = iidx;
+        }
+        return IidxSet.of(iidxs, nItems);
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(ByteBuffer buffer, int[] cursor) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get(cursor[0]++);
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    /**
+     * Fingerprint of the user and item indices, so that a sample is not
+     * read back with indices that map uidx and iidx to different ids.
+     */
+    private static <U, I> long fingerprint(FastUserIndex<U> userIndex, FastItemIndex<I> itemIndex) {
+        long h = 0xcbf29ce484222325L;
+        for (int uidx = 0; uidx < userIndex.numUsers(); uidx++) {
+            h = (h ^ userIndex.uidx2user(uidx).hashCode()) * 0x100000001b3L;
+        }
+        for (int iidx = 0; iidx < itemIndex.numItems(); iidx++) {
+            h = (h ^ itemIndex.iidx2item(iidx).hashCode()) * 0x100000001b3L;
+        }
+        return h;
+    }
+}
@@ -0,0 +1,296 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.targetsampling;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Journal of the completed evaluation units of a run, so that an
+ * interrupted run can be resumed. A unit is a recommender evaluated on a
+ * fold, with the summary line and the per-user values of every target size.
+ * Units are appended to the journal and synced to disk as they complete.
+ * When the journal is opened again, the complete units are indexed by their
+ * position in the file, a unit cut short by a crash is discarded, and the
+ * values of a unit are only read when it is replayed.
+ *
+ * <p>
+ * The journal starts with a description of the experiment, which should
+ * include a fingerprint of the data files. If it does not match the current
+ * one, the journal is discarded and the run starts from scratch. When a run
+ * completes, {@link #finish()} deletes the journal, so that later runs start
+ * from scratch. Other files of the run, such as precomputed models, can be
+ * saved next to the journal, and are deleted with it.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public class Checkpoint implements Closeable {
+
+    public final static String JOURNAL_FILE = "journal.bin";
+
+    private final String path;
+    private final Map<String, Long> units = new HashMap<>();
+    private final RandomAccessFile in;
+    private final FileOutputStream file;
+    private final DataOutputStream out;
+    private final boolean resumed;
+    private final Set<String> files = new HashSet<>();
+    private boolean closed = false;
+
+    /**
+     * Opens the journal of a run, creating it if it does not exist.
+     *
+     * @param path prefix of the journal file
+     * @param experiment description of the experiment, which a previous
+     * journal must match in order to be resumed
+     * @throws IOException
+     */
+    public Checkpoint(String path, String experiment) throws IOException {
+        this.path = path;
+        File journal = new File(path + JOURNAL_FILE);
+        long length = 0;
+        if (journal.exists()) {
+            try (RandomAccessFile raf = new RandomAccessFile(journal, "rw")) {
+                length = scan(raf, experiment);
+                raf.setLength(length);
+            }
+            if (length > 0) {
+                System.out.println("Resuming from " + units.size() + " completed units in " + path + JOURNAL_FILE);
+            }
+        }
+        this.resumed = length > 0;
+        this.file = new FileOutputStream(journal, resumed);
+        this.out = new DataOutputStream(new BufferedOutputStream(file));
+        if (!resumed) {
+            out.writeUTF(experiment);
+            sync();
+        }
+        this.in = new RandomAccessFile(journal, "r");
+    }
+
+    /**
+     * Indexes the complete units of a journal.
+     *
+     * @return length of the valid part of the journal, 0 if the journal
+     * belongs to a different experiment
+     */
+    private long scan(RandomAccessFile raf, String experiment) throws IOException {
+        long valid = 0;
+        try {
+            if (!raf.readUTF().equals(experiment)) {
+                System.out.println("Discarding " + path + JOURNAL_FILE + " from a different configuration");
+                return 0;
+            }
+            valid = raf.getFilePointer();
+            while (true) {
+                long offset = raf.getFilePointer();
+                String key = raf.readInt() + "\t" + raf.readUTF();
+                int nSizes = raf.readInt();
+                for (int s = 0; s < nSizes; s++) {
+                    raf.readUTF();
+                    int nMetrics = raf.readInt();
+                    int nUsers = raf.readInt();
+                    long end = raf.getFilePointer() + (long) nMetrics * nUsers * Double.BYTES;
+                    if (end > raf.length()) {
+                        throw new EOFException();
+                    }
+                    raf.seek(end);
+                }
+                units.put(key, offset);
+                valid = raf.getFilePointer();
+            }
+        } catch (EOFException ex) {
+            return valid;
+        }
+    }
+
+    /**
+     * Completed unit of a recommender on a fold.
+     *
+     * @param fold
+     * @param recName recommender
+     * @return the unit, or null if it is not in the journal
+     * @throws IOException
+     */
+    public synchronized Unit get(int fold, String recName) throws IOException {
+        Long offset = units.get(fold + "\t" + recName);
+        if (offset == null) {
+            return null;
+        }
+        in.seek(offset);
+        in.readInt();
+        in.readUTF();
+        int nSizes = in.readInt();
+        Unit unit = new Unit(new String[nSizes], new double[nSizes][][]);
+        for (int s = 0; s < nSizes; s++) {
+            unit.lines[s] = in.readUTF();
+            int nMetrics = in.readInt();
+            int nUsers = in.readInt();
+            byte[] bytes = new byte[nUsers * Double.BYTES];
+            unit.values[s] = new double[nMetrics][nUsers];
+            for (int k = 0; k < nMetrics; k++) {
+                in.readFully(bytes);
+                ByteBuffer.wrap(bytes).asDoubleBuffer().get(unit.values[s][k]);
+            }
+        }
+        return unit;
+    }
+
+    /**
+     * Whether the unit of a recommender on a fold is in the journal.
+     *
+     * @param fold
+     * @param recName recommender
+     * @return true if the unit is in the journal
+     */
+    public synchronized boolean contains(int fold, String recName) {
+        return units.containsKey(fold + "\t" + recName);
+    }
+
+    /**
+     * Appends a completed unit and syncs it to disk.
+     *
+     * @param fold
+     * @param recName recommender
+     * @param unit summary lines and per-user values of each target size
+     * @throws IOException
+     */
+    public synchronized void save(int fold, String recName, Unit unit) throws IOException {
+        // The journal is synced after every unit, so nothing is left in the buffer
+        long offset = file.getChannel().position();
+        out.writeInt(fold);
+        out.writeUTF(recName);
+        out.writeInt(unit.lines.length);
+        for (int s = 0; s < unit.lines.length; s++) {
+            out.writeUTF(unit.lines[s]);
+            out.writeInt(unit.values[s].length);
+            out.writeInt(unit.values[s][0].length);
+            for (double[] metricValues : unit.values[s]) {
+                ByteBuffer buffer = ByteBuffer.allocate(metricValues.length * Double.BYTES);
+                buffer.asDoubleBuffer().put(metricValues);
+                out.write(buffer.array());
+            }
+        }
+        sync();
+        units.put(fold + "\t" + recName, offset);
+    }
+
+    /**
+     * Whether the run is resumed from a previous journal of the same
+     * experiment, so that other files saved by that run can be reused.
+     *
+     * @return true if the journal was resumed
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * Path of a file of the run, saved next to the journal, which is deleted
+     * with the journal when the run completes.
+     *
+     * @param name name of the file
+     * @return path
+     */
+    public synchronized String file(String name) {
+        files.add(path + name);
+        return path + name;
+    }
+
+    /**
+     * Fingerprint of a set of files, made of the path, size and modification
+     * time of each file, to be included in the description of an experiment.
+     *
+     * @param paths paths of the files
+     * @return fingerprint
+     */
+    public static String fingerprint(List<String> paths) {
+        StringBuilder fingerprint = new StringBuilder();
+        for (String path : paths) {
+            File f = new File(path);
+            fingerprint.append("\n").append(path).append("\t").append(f.length()).append("\t").append(f.lastModified());
+        }
+        return fingerprint.toString();
+    }
+
+    /**
+     * Closes and deletes the journal, and the other files of the run, once
+     * the run is complete.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        close();
+        File journal = new File(path + JOURNAL_FILE);
+        if (!journal.delete()) {
+            throw new IOException("Cannot delete " + journal);
+        }
+        for (String name : files) {
+            File f = new File(name);
+            if (f.exists() && !f.delete()) {
+                throw new IOException("Cannot delete " + f);
+            }
+        }
+    }
+
+    private void sync() throws IOException {
+        out.flush();
+        file.getFD().sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        out.close();
+        in.close();
+    }
+
+    /**
+     * Summary lines and per-user values of a unit, for each target size.
+     */
+    public static class Unit {
+
+        private final String[] lines;
+        private final double[][][] values;
+
+        /**
+         *
+         * @param lines summary line of each target size
+         * @param values values of each target size, metric and user
+         */
+        public Unit(String[] lines, double[][][] values) {
+            this.lines = lines;
+            this.values = values;
+        }
+
+        public String[] getLines() {
+            return lines;
+        }
+
+        public double[][][] getValues() {
+            return values;
+        }
+    }
+}
@@ -15,6 +15,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
 import java.util.Properties;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
  *
@@ -31,7 +33,19 @@ public class Configuration {
 
     private final int nFolds;
     private final int[] targetSizes;
-    private final int cutoff;
+    private final boolean nestedTargetSets;
+    private final boolean popularityTargetSets;
+    private final int[] cutoffs;
+    private final long seed;
+    private final boolean floatResults;
+    private final boolean checkpoint;
+    private final boolean keepPerUser;
+    private final String samplesPath;
+    private final String experiment;
+    private final boolean streamingStatistics;
+    private final Set<Set<String>> statisticsPairs;
+    private final int resamples;
+    private final double confidence;
     private Mode fillMode;
     
     //Params when all recs
@@ -80,7 +94,22 @@ public class Configuration {
             this.threshold = Integer.valueOf(prop.getProperty("data.threshold"));
             this.resultsPath = prop.getProperty("results.path");
             this.nFolds = Integer.valueOf(prop.getProperty("crossvalidation.nfolds"));
-            this.cutoff = Integer.valueOf(prop.getProperty("evaluation.cutoff"));
+            this.cutoffs = Arrays.stream(prop.getProperty("evaluation.cutoff").split(",")).mapToInt(str -> Integer.valueOf(str)).sorted().distinct().toArray();
+            this.seed = Long.valueOf(prop.getProperty("random.seed", "0"));
+            this.floatResults = Boolean.valueOf(prop.getProperty("results.float32"));
+            this.checkpoint = Boolean.valueOf(prop.getProperty("results.checkpoint"));
+            this.keepPerUser = Boolean.valueOf(prop.getProperty("results.peruser.keep"));
+            String samples = prop.getProperty("results.samples.path", "");
+            this.samplesPath = samples.isEmpty() ? null : samples;
+            this.experiment = prop.stringPropertyNames().stream()
+                    .filter(key -> !key.startsWith("results.") && !key.startsWith("statistics."))
+                    .sorted()
+                    .map(key -> key + "=" + prop.getProperty(key))
+                    .collect(Collectors.joining("\n"));
+            this.streamingStatistics = Boolean.valueOf(prop.getProperty("statistics.streaming"));
+            this.statisticsPairs = PairedStatistics.parsePairs(prop.getProperty("statistics.pairs"));
+            this.resamples = Integer.valueOf(prop.getProperty("statistics.resamples", "0"));
+            this.confidence = Double.valueOf(prop.getProperty("statistics.confidence", "0.95"));
             switch (prop.getProperty("fill.mode")){
                 case "rnd":
                     this.fillMode = Mode.RND;
@@ -95,6 +124,11 @@ public class Configuration {
             for (int i = 0; i < targetSizeTokens.length; i++) {
                 this.targetSizes[i] = Integer.valueOf(targetSizeTokens[i]);
             }
+            this.nestedTargetSets = Boolean.valueOf(prop.getProperty("targetselection.nested"));
+            this.popularityTargetSets = Boolean.valueOf(prop.getProperty("targetselection.popularity"));
+            if (nestedTargetSets && popularityTargetSets) {
+                throw new IllegalArgumentException("targetselection.popularity is not supported with nested target sets");
+            }
             
             this.allRecs=Boolean.valueOf(prop.getProperty("algorithms.run.all"));
             if (this.allRecs) {
@@ -149,8 +183,68 @@ public class Configuration {
         return targetSizes;
     }
 
+    public boolean isNestedTargetSets() {
+        return nestedTargetSets;
+    }
+
+    // Target items drawn with probability proportional to their number of training ratings
+    public boolean isPopularityTargetSets() {
+        return popularityTargetSets;
+    }
+
+    // Largest cutoff, which is the length of the recommendation lists
     public int getCutoff() {
-        return cutoff;
+        return cutoffs[cutoffs.length - 1];
+    }
+
+    // Cutoffs in increasing order
+    public int[] getCutoffs() {
+        return cutoffs;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public boolean isFloatResults() {
+        return floatResults;
+    }
+
+    public boolean isCheckpoint() {
+        return checkpoint;
+    }
+
+    // Keep the per-user values in the results path once they have been processed
+    public boolean isKeepPerUser() {
+        return keepPerUser;
+    }
+
+    // Prefix of the sample files saved and reused across runs, or null if samples are not saved
+    public String getSamplesPath() {
+        return samplesPath;
+    }
+
+    // Properties that determine the evaluation results, which a checkpoint must match to be resumed
+    public String getExperiment() {
+        return experiment;
+    }
+
+    public boolean isStreamingStatistics() {
+        return streamingStatistics;
+    }
+
+    // Pairs of recommenders to compare, or null for all the pairs
+    public Set<Set<String>> getStatisticsPairs() {
+        return statisticsPairs;
+    }
+
+    // Number of resamples of the permutation and bootstrap tests, 0 if disabled
+    public int getResamples() {
+        return resamples;
+    }
+
+    public double getConfidence() {
+        return confidence;
     }
 
     public Mode getFillMode() {
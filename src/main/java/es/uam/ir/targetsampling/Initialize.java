@@ -53,6 +53,8 @@ public class Initialize {
     public final static String RESULTS_PATH = "results/";
     public final static String BIASED_PATH = "biased/";
     public final static String UNBIASED_PATH = "unbiased/";
+
+    public final static long CROSSVALIDATION_SEED = 0;
     
 
     /**
@@ -118,7 +120,7 @@ public class Initialize {
         ml1mOut.print(ratings.replace("::", "\t"));
         ml1mOut.close();
         
-        CrossValidation.crowssValidation(PREPROCESSED_ML1M_DATASET_PATH, ML1M_PATH, GenerateFigure.N_FOLDS);
+        CrossValidation.crowssValidation(PREPROCESSED_ML1M_DATASET_PATH, ML1M_PATH, GenerateFigure.N_FOLDS, CROSSVALIDATION_SEED);
     }
 
     static void processYahoo() throws FileNotFoundException, IOException {
@@ -144,7 +146,7 @@ public class Initialize {
         }
         trainOut.close();
         
-        CrossValidation.crowssValidation(PREPROCESSED_YAHOO_TRAIN_DATASET_PATH, YAHOO_PATH, GenerateFigure.N_FOLDS);
+        CrossValidation.crowssValidation(PREPROCESSED_YAHOO_TRAIN_DATASET_PATH, YAHOO_PATH, GenerateFigure.N_FOLDS, CROSSVALIDATION_SEED);
     }
 
 }
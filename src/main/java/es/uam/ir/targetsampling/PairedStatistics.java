@@ -0,0 +1,316 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.targetsampling;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.math3.stat.inference.TTest;
+
+/**
+ * Streaming paired statistics between recommenders: paired t-test p-value,
+ * number of ties and number of ties at zero of each metric, for each target
+ * size and pair of recommenders. Instead of keeping the per-user values of
+ * all the folds, the values of the current fold are buffered for the
+ * recommenders in some compared pair, and each recommender updates, as soon
+ * as it is added, running accumulators with the recommenders already added
+ * for the fold. The mean
+ * and variance of the differences are accumulated with Welford's method, so
+ * that pairs with equal values have exactly zero variance.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public class PairedStatistics {
+
+    private final int nMetrics;
+    private final Set<Set<String>> pairs;
+    // Target size -> recommenders, in the order in which they were added
+    private final Map<Integer, List<String>> recNames = new LinkedHashMap<>();
+    // Target size -> recommender -> metric -> values of the current fold
+    private final Map<Integer, Map<String, double[][]>> foldValues = new HashMap<>();
+    // Target size -> recommender 1 -> recommender 2 -> accumulator of each metric
+    private final Map<Integer, Map<String, Map<String, Accumulator[]>>> accumulators = new HashMap<>();
+
+    /**
+     *
+     * @param nMetrics number of metrics
+     * @param pairs pairs of recommenders to compare, or null to compare all
+     * the pairs
+     */
+    public PairedStatistics(int nMetrics, Set<Set<String>> pairs) {
+        this.nMetrics = nMetrics;
+        this.pairs = pairs;
+    }
+
+    /**
+     * Parses a list of pairs of recommenders, written as rec1|rec2 and
+     * separated by semicolons.
+     *
+     * @param pairs list of pairs
+     * @return set of pairs, or null if the list is empty
+     * @throws IllegalArgumentException if an entry is not a pair of
+     * non-empty names
+     */
+    public static Set<Set<String>> parsePairs(String pairs) {
+        if (pairs == null || pairs.trim().isEmpty()) {
+            return null;
+        }
+        Set<Set<String>> parsed = new HashSet<>();
+        for (String pair : pairs.split(";")) {
+            String[] recs = pair.split("\\|", -1);
+            if (recs.length != 2 || recs[0].trim().isEmpty() || recs[1].trim().isEmpty()) {
+                throw new IllegalArgumentException("statistics.pairs entry '" + pair + "' is not a pair rec1|rec2");
+            }
+            parsed.add(new HashSet<>(Arrays.asList(recs[0].trim(), recs[1].trim())));
+        }
+        return parsed;
+    }
+
+    /**
+     * Whether a pair of recommenders is compared.
+     *
+     * @param pairs pairs of recommenders to compare, or null to compare all
+     * the pairs
+     * @param rec1
+     * @param rec2
+     * @return true if the pair is compared
+     */
+    public static boolean isCompared(Set<Set<String>> pairs, String rec1, String rec2) {
+        return pairs == null || pairs.contains(new HashSet<>(Arrays.asList(rec1, rec2)));
+    }
+
+    /**
+     * Adds the values of a recommender in the current fold, and updates the
+     * accumulators of its pairs with the recommenders already added for the
+     * fold and target size.
+     *
+     * @param targetSize
+     * @param rec recommender
+     * @param values values of each metric for the users of the fold, in the
+     * same user order for all the recommenders
+     */
+    public synchronized void add(int targetSize, String rec, double[][] values) {
+        List<String> recs = recNames.computeIfAbsent(targetSize, n -> new ArrayList<>());
+        if (!recs.contains(rec)) {
+            recs.add(rec);
+        }
+        Map<String, double[][]> fold = foldValues.computeIfAbsent(targetSize, n -> new HashMap<>());
+        Map<String, Map<String, Accumulator[]>> sizeAccumulators = accumulators.computeIfAbsent(targetSize, n -> new HashMap<>());
+
+        for (Map.Entry<String, double[][]> entry : fold.entrySet()) {
+            String other = entry.getKey();
+            if (!isCompared(pairs, other, rec)) {
+                continue;
+            }
+            // The first recommender of the pair is the one added first
+            boolean otherFirst = recs.indexOf(other) < recs.indexOf(rec);
+            String rec1 = otherFirst ? other : rec;
+            String rec2 = otherFirst ? rec : other;
+            double[][] values1 = otherFirst ? entry.getValue() : values;
+            double[][] values2 = otherFirst ? values : entry.getValue();
+
+            Accumulator[] pairAccumulators = sizeAccumulators
+                    .computeIfAbsent(rec1, r -> new HashMap<>())
+                    .computeIfAbsent(rec2, r -> {
+                        Accumulator[] acc = new Accumulator[nMetrics];
+                        for (int k = 0; k < nMetrics; k++) {
+                            acc[k] = new Accumulator();
+                        }
+                        return acc;
+                    });
+            for (int k = 0; k < nMetrics; k++) {
+                pairAccumulators[k].add(values1[k], values2[k]);
+            }
+        }
+        if (isPaired(rec)) {
+            fold.put(rec, values);
+        }
+    }
+
+    /**
+     * Whether a recommender is in some compared pair, so that its values are
+     * needed by the recommenders added after it.
+     */
+    private boolean isPaired(String rec) {
+        if (pairs == null) {
+            return true;
+        }
+        for (Set<String> pair : pairs) {
+            if (pair.contains(rec)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Discards the values of the current fold.
+     */
+    public synchronized void endFold() {
+        foldValues.clear();
+    }
+
+    /**
+     * Target sizes, in the order in which they were added.
+     *
+     * @return target sizes
+     */
+    public List<Integer> targetSizes() {
+        return new ArrayList<>(recNames.keySet());
+    }
+
+    /**
+     * Recommenders of a target size, in the order in which they were added.
+     *
+     * @param targetSize
+     * @return recommenders
+     */
+    public List<String> recNames(int targetSize) {
+        return recNames.get(targetSize);
+    }
+
+    /**
+     * Accumulators of a pair of recommenders, in either order.
+     *
+     * @param targetSize
+     * @param rec1
+     * @param rec2
+     * @return accumulator of each metric, or null if the pair was not
+     * accumulated for the target size
+     */
+    public Accumulator[] get(int targetSize, String rec1, String rec2) {
+        Map<String, Map<String, Accumulator[]>> sizeAccumulators = accumulators.get(targetSize);
+        if (sizeAccumulators == null) {
+            return null;
+        }
+        Map<String, Accumulator[]> rec1Accumulators = sizeAccumulators.get(rec1);
+        if (rec1Accumulators != null && rec1Accumulators.containsKey(rec2)) {
+            return rec1Accumulators.get(rec2);
+        }
+        Map<String, Accumulator[]> rec2Accumulators = sizeAccumulators.get(rec2);
+        return rec2Accumulators != null ? rec2Accumulators.get(rec1) : null;
+    }
+
+    /**
+     * Running statistics of the differences between the values of two
+     * recommenders for one metric.
+     */
+    public static class Accumulator {
+
+        private static final StreamingTTest TTEST = new StreamingTTest();
+
+        private long n = 0;
+        private double mean = 0;
+        private double m2 = 0;
+        private long ties = 0;
+        private long tiesAtZero = 0;
+
+        /**
+         * Statistics of two complete vectors of values. The sum of the
+         * differences and the ties are computed in one pass, and the
+         * variance in a second pass around the mean, with the same
+         * arithmetic as {@link TTest#pairedTTest(double[], double[])}, so
+         * that the p-value is identical to that of commons-math.
+         *
+         * @param values1 values of the first recommender
+         * @param values2 values of the second recommender
+         * @return statistics of the differences
+         */
+        public static Accumulator of(double[] values1, double[] values2) {
+            Accumulator acc = new Accumulator();
+            int n = values1.length;
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                double v1 = values1[i];
+                double v2 = values2[i];
+                sum += v1 - v2;
+                if (Double.compare(v1, v2) == 0) {
+                    acc.ties++;
+                    if (Double.compare(v1, 0.0) == 0) {
+                        acc.tiesAtZero++;
+                    }
+                }
+            }
+            double mean = sum / n;
+
+            double sum1 = 0;
+            double sum2 = 0;
+            for (int i = 0; i < n; i++) {
+                double d = values1[i] - values2[i];
+                sum1 += (d - mean) * (d - mean);
+                sum2 += d - mean;
+            }
+            acc.n = n;
+            acc.mean = mean;
+            acc.m2 = sum1 - (sum2 * sum2 / n);
+            return acc;
+        }
+
+        private void add(double[] values1, double[] values2) {
+            for (int i = 0; i < values1.length; i++) {
+                double d = values1[i] - values2[i];
+                n++;
+                double delta = d - mean;
+                mean += delta / n;
+                m2 += delta * (d - mean);
+                if (Double.compare(values1[i], values2[i]) == 0) {
+                    ties++;
+                    if (Double.compare(values1[i], 0.0) == 0) {
+                        tiesAtZero++;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Two-sided p-value of the paired t-test.
+         *
+         * @return p-value
+         */
+        public double pValue() {
+            return TTEST.pValue(mean, m2 / (n - 1), n);
+        }
+
+        /**
+         * Number of users with the same value for both recommenders.
+         *
+         * @return number of ties
+         */
+        public long ties() {
+            return ties;
+        }
+
+        /**
+         * Number of users with value zero for both recommenders.
+         *
+         * @return number of ties at zero
+         */
+        public long tiesAtZero() {
+            return tiesAtZero;
+        }
+    }
+
+    /**
+     * Gives access to the t-test of commons-math from the mean and variance
+     * of the differences, so that p-values are computed in the same way as
+     * by {@link TTest#pairedTTest(double[], double[])}.
+     */
+    private static class StreamingTTest extends TTest {
+
+        double pValue(double mean, double variance, long n) {
+            return tTest(mean, 0.0, variance, n);
+        }
+    }
+}
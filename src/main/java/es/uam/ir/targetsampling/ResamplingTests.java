@@ -0,0 +1,126 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.targetsampling;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Resampling tests of the difference between two recommenders: two-sided
+ * sign-flip permutation test of the mean difference, and percentile
+ * bootstrap confidence interval of the mean difference. In each resample,
+ * the random signs and the bootstrap user indices are drawn once and used
+ * for all the metrics of the pair. Buffers are kept per thread, so that
+ * pairs can be tested in parallel without allocating arrays per pair or
+ * per resample.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public class ResamplingTests {
+
+    /**
+     * Position of each value in the results of a metric.
+     */
+    public static final int P_VALUE = 0;
+    public static final int LOWER = 1;
+    public static final int UPPER = 2;
+
+    private final int nResamples;
+    private final double confidence;
+    private final int nUsers;
+    private final int nMetrics;
+    private final ThreadLocal<Buffers> buffers;
+
+    /**
+     *
+     * @param nResamples number of permutations and bootstrap samples
+     * @param confidence confidence level of the intervals
+     * @param nUsers number of values of each metric
+     * @param nMetrics number of metrics
+     */
+    public ResamplingTests(int nResamples, double confidence, int nUsers, int nMetrics) {
+        this.nResamples = nResamples;
+        this.confidence = confidence;
+        this.nUsers = nUsers;
+        this.nMetrics = nMetrics;
+        this.buffers = ThreadLocal.withInitial(Buffers::new);
+    }
+
+    /**
+     * Tests a pair of recommenders on all the metrics.
+     *
+     * @param store per-user values
+     * @param columns1 column of each metric for the first recommender
+     * @param columns2 column of each metric for the second recommender
+     * @param rnd random stream of the pair
+     * @return for each metric, the permutation p-value and the bounds of
+     * the confidence interval of the mean of the first recommender minus
+     * the second
+     */
+    public double[][] test(UserResultsStore store, int[] columns1, int[] columns2, SplittableRandom rnd) {
+        Buffers b = buffers.get();
+        double[] observed = new double[nMetrics];
+        for (int k = 0; k < nMetrics; k++) {
+            double[] d = b.differences[k];
+            store.read(columns1[k], d);
+            store.read(columns2[k], b.values);
+            double sum = 0;
+            for (int i = 0; i < nUsers; i++) {
+                d[i] -= b.values[i];
+                sum += d[i];
+            }
+            observed[k] = Math.abs(sum);
+        }
+
+        int[] extreme = new int[nMetrics];
+        for (int r = 0; r < nResamples; r++) {
+            for (int w = 0; w < b.signs.length; w++) {
+                b.signs[w] = rnd.nextLong();
+            }
+            for (int i = 0; i < nUsers; i++) {
+                b.sample[i] = rnd.nextInt(nUsers);
+            }
+            for (int k = 0; k < nMetrics; k++) {
+                double[] d = b.differences[k];
+                double flipped = 0;
+                double resampled = 0;
+                for (int i = 0; i < nUsers; i++) {
+                    // Bit i of the sign words gives the sign of user i
+                    flipped += ((b.signs[i >>> 6] >>> i) & 1) == 0 ? d[i] : -d[i];
+                    resampled += d[b.sample[i]];
+                }
+                if (Math.abs(flipped) >= observed[k]) {
+                    extreme[k]++;
+                }
+                b.means[k][r] = resampled / nUsers;
+            }
+        }
+
+        int lower = Math.max(0, (int) Math.floor((1 - confidence) / 2 * nResamples));
+        int upper = Math.min(nResamples - 1, (int) Math.ceil((1 + confidence) / 2 * nResamples) - 1);
+        double[][] results = new double[nMetrics][3];
+        for (int k = 0; k < nMetrics; k++) {
+            Arrays.sort(b.means[k]);
+            results[k][P_VALUE] = (extreme[k] + 1.0) / (nResamples + 1.0);
+            results[k][LOWER] = b.means[k][lower];
+            results[k][UPPER] = b.means[k][upper];
+        }
+        return results;
+    }
+
+    private class Buffers {
+
+        final double[][] differences = new double[nMetrics][nUsers];
+        final double[] values = new double[nUsers];
+        final long[] signs = new long[(nUsers + 63) / 64];
+        final int[] sample = new int[nUsers];
+        final double[][] means = new double[nMetrics][nResamples];
+    }
+}
@@ -9,61 +9,70 @@
 package es.uam.ir.targetsampling;
 
 import es.uam.ir.filler.Filler;
-import es.uam.eps.ir.ranksys.core.Recommendation;
-import es.uam.eps.ir.ranksys.fast.FastRecommendation;
+import es.uam.ir.ranksys.metrics.fast.FastMetrics;
+import es.uam.ir.ranksys.metrics.fast.RelevanceIndex;
 import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
 import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
 import es.uam.eps.ir.ranksys.fast.index.SimpleFastItemIndex;
 import es.uam.eps.ir.ranksys.fast.index.SimpleFastUserIndex;
 import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
 import es.uam.eps.ir.ranksys.fast.preference.SimpleFastPreferenceData;
-import es.uam.eps.ir.ranksys.metrics.AbstractRecommendationMetric;
-import es.uam.ir.ranksys.metrics.basic.Coverage;
-import es.uam.ir.ranksys.metrics.basic.NDCG;
-import es.uam.eps.ir.ranksys.metrics.basic.Precision;
-import es.uam.eps.ir.ranksys.metrics.basic.Recall;
-import es.uam.eps.ir.ranksys.metrics.rel.BinaryRelevanceModel;
+import es.uam.eps.ir.ranksys.mf.Factorization;
 import es.uam.eps.ir.ranksys.mf.als.HKVFactorizer;
-import es.uam.eps.ir.ranksys.mf.rec.MFRecommender;
-import es.uam.eps.ir.ranksys.nn.user.UserNeighborhoodRecommender;
-import es.uam.eps.ir.ranksys.nn.user.neighborhood.TopKUserNeighborhood;
-import es.uam.eps.ir.ranksys.nn.user.sim.UserSimilarity;
-import es.uam.eps.ir.ranksys.nn.user.sim.VectorCosineUserSimilarity;
+import es.uam.ir.ranksys.mf.rec.CandidateMFRecommender;
+import es.uam.ir.ranksys.nn.user.DenseUserNeighborhoodRecommender;
 import es.uam.eps.ir.ranksys.rec.Recommender;
 import es.uam.eps.ir.ranksys.rec.fast.FastRecommender;
-import es.uam.eps.ir.ranksys.rec.fast.basic.PopularityRecommender;
-import es.uam.eps.ir.ranksys.rec.runner.fast.FastFilters;
+import es.uam.ir.ranksys.rec.fast.FastCandidateRecommender;
+import es.uam.ir.ranksys.rec.fast.FastRankedRecommender;
+import es.uam.ir.ranksys.rec.fast.RankedList;
+import es.uam.ir.ranksys.rec.fast.basic.PopularityRecommender;
 import es.uam.ir.datagenerator.TruncateRatings;
 import es.uam.ir.util.Timer;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
 import java.util.function.IntPredicate;
 import java.util.stream.DoubleStream;
-import org.apache.commons.math3.stat.inference.TTest;
+import java.util.stream.IntStream;
 import org.ranksys.formats.index.ItemsReader;
 import org.ranksys.formats.index.UsersReader;
+import static java.lang.Math.sqrt;
 import static org.ranksys.formats.parsing.Parsers.lp;
 import org.ranksys.formats.preference.SimpleRatingPreferencesReader;
 import es.uam.ir.ranksys.rec.runner.fast.FastSamplers;
+import es.uam.ir.ranksys.rec.runner.fast.CandidateIndex;
+import es.uam.ir.ranksys.rec.runner.fast.IidxSet;
+import es.uam.ir.ranksys.rec.runner.fast.NestedSampler;
+import es.uam.ir.ranksys.rec.runner.fast.SamplerFile;
+import es.uam.ir.util.RandomStreams;
 import es.uam.ir.crossvalidation.CrossValidation;
 import es.uam.ir.filler.Filler.Mode;
 import es.uam.ir.util.GetUsersAndItems;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.util.Set;
 import java.util.function.Supplier;
 import java.util.logging.LogManager;
 import java.util.stream.Collectors;
-import org.ranksys.core.util.tuples.Tuple2id;
-import org.ranksys.core.util.tuples.Tuple2od;
 import es.uam.ir.ranksys.rec.fast.basic.RandomRecommender;
 import es.uam.ir.ranksys.rec.fast.basic.AverageRatingRecommender;
 import es.uam.ir.ranksys.nn.user.NormUserNeighborhoodRecommenderWithMinimum;
+import es.uam.ir.ranksys.nn.user.UserNeighborhoodSweep;
+import es.uam.ir.ranksys.nn.user.UserSimilarityIndex;
+import java.io.File;
+import java.util.Arrays;
 import java.io.FileNotFoundException;
 
 /**
@@ -78,14 +87,31 @@ public class TargetSampling {
     public final static String P_VALUES_FILE = "pvalues.txt";
     public final static String TIES_FILE = "ties.txt";
     public final static String TIES_AT_ZERO_FILE = "tiesAtZero.txt";
+    public final static String PERMUTATION_P_VALUES_FILE = "permutation-pvalues.txt";
+    public final static String CONFIDENCE_INTERVALS_FILE = "confidence-intervals.txt";
     public final static String EXPECTED_INTERSECTION_RATIO_FILE = "expected-intersection-ratio.txt";
+    public final static String USER_SIMILARITY_FILE = "user-similarity-";
+
+    // Keys of the random streams derived from the configured seed
+    private final static long SAMPLER_STREAM = 0;
+    private final static long RANDOM_STREAM = 1;
+    private final static long FILLER_STREAM = 2;
+    private final static long IMF_STREAM = 3;
+    private final static long RESAMPLING_STREAM = 4;
 
-    private final String[] METRIC_NAMES = new String[]{
+    // Bound of the per-user values of a batch of recommenders of a neighborhood sweep, kept until their turn
+    private final static long SWEEP_BATCH_VALUES = 1L << 25;
+
+    // Same order as the metrics in FastMetrics
+    private final String[] METRICS = new String[]{
         "Coverage",
         "nDCG",
         "P",
         "Recall",};
 
+    // Metrics at each cutoff
+    private String[] METRIC_NAMES;
+
     /**
      *
      * @param conf
@@ -102,9 +128,7 @@ public class TargetSampling {
     public void runCrossValidation() throws IOException {
         Timer.start("Starting...");
 
-        for (int i = 0; i < METRIC_NAMES.length; i++) {
-            METRIC_NAMES[i] += "@" + conf.getCutoff();
-        }
+        METRIC_NAMES = metricNames(conf.getCutoffs());
 
         LogManager.getLogManager().reset();
 
@@ -116,9 +140,15 @@ public class TargetSampling {
 
         Timer.done("");
 
-        Map<String, Map<String, double[]>> evalsPerUser = new HashMap<>();
+        int[] targetSizes = conf.getTargetSizes();
+        ByteArrayOutputStream[] outPerSize = new ByteArrayOutputStream[targetSizes.length];
+        double[][] expectations = new double[targetSizes.length][conf.getNFolds()];
         int nUsersInCrossValidation = 0;
-        try (PrintStream out = new PrintStream(conf.getResultsPath() + TARGET_SAMPLING_FILE);
+        // In streaming mode the paired statistics are accumulated fold by fold, and per-user values are not stored
+        PairedStatistics statistics = conf.isStreamingStatistics() ? new PairedStatistics(METRIC_NAMES.length, conf.getStatisticsPairs()) : null;
+        try (Checkpoint checkpoint = conf.isCheckpoint() ? new Checkpoint(conf.getResultsPath(), experiment(null)) : null;
+                UserResultsStore evalsPerUser = statistics != null ? null : new UserResultsStore(conf.getResultsPath(), (long) userIndex.numUsers() * conf.getNFolds(), conf.isFloatResults());
+                PrintStream out = new PrintStream(conf.getResultsPath() + TARGET_SAMPLING_FILE);
                 PrintStream outExpectation = new PrintStream(conf.getResultsPath() + EXPECTED_INTERSECTION_RATIO_FILE)) {
             //Header
             outExpectation.println("fold\ttarget size\texpected intersection ratio in top n");
@@ -128,49 +158,54 @@ public class TargetSampling {
             }
             out.println();
 
-            //Run
-            for (int n : conf.getTargetSizes()) {
-                int targetSize = n;
-                nUsersInCrossValidation = 0;
+            //Run: each fold is read and trained once, and evaluated for all the target sizes
+            for (int s = 0; s < targetSizes.length; s++) {
+                outPerSize[s] = new ByteArrayOutputStream();
+            }
+            for (int currentFold = 1; currentFold <= conf.getNFolds(); currentFold++) {
+                System.out.println("Running fold " + currentFold);
+                FastPreferenceData<Long, Long> trainData = SimpleFastPreferenceData.load(SimpleRatingPreferencesReader.get().read(conf.getDataPath() + currentFold + "-data-train.txt", lp, lp), userIndex, itemIndex);
+                FastPreferenceData<Long, Long> testData = SimpleFastPreferenceData.load(SimpleRatingPreferencesReader.get().read(conf.getDataPath() + currentFold + "-data-test.txt", lp, lp), userIndex, itemIndex);
+                FastPreferenceData<Long, Long> positiveTrainData = TruncateRatings.run(trainData, conf.getThreshold());
+
+                runFold(userIndex,
+                        itemIndex,
+                        nUsersInCrossValidation,
+                        currentFold,
+                        trainData,
+                        positiveTrainData,
+                        testData,
+                        evalsPerUser,
+                        statistics,
+                        checkpoint,
+                        outPerSize,
+                        expectations
+                );
+
+                nUsersInCrossValidation += trainData.getUsersWithPreferences().count();
+            }
+
+            //Values, by target size and fold
+            for (int s = 0; s < targetSizes.length; s++) {
+                outPerSize[s].writeTo(out);
                 for (int currentFold = 1; currentFold <= conf.getNFolds(); currentFold++) {
-                    System.out.println("Running fold " + currentFold);
-                    FastPreferenceData<Long, Long> trainData = SimpleFastPreferenceData.load(SimpleRatingPreferencesReader.get().read(conf.getDataPath() + currentFold + "-data-train.txt", lp, lp), userIndex, itemIndex);
-                    FastPreferenceData<Long, Long> testData = SimpleFastPreferenceData.load(SimpleRatingPreferencesReader.get().read(conf.getDataPath() + currentFold + "-data-test.txt", lp, lp), userIndex, itemIndex);
-                    FastPreferenceData<Long, Long> positiveTrainData = TruncateRatings.run(trainData, conf.getThreshold());
-
-                    //Sampler:
-                    Function<Long, IntPredicate> sampler = FastSamplers.uniform(trainData, FastSamplers.inTestForUser(testData), targetSize);
-                    Function<Long, IntPredicate> notTrainFilter = FastFilters.notInTrain(trainData);
-                    Function<Long, IntPredicate> userFilter = FastFilters.and(sampler, notTrainFilter);
-
-                    runSplit(userIndex,
-                            itemIndex,
-                            nUsersInCrossValidation,
-                            targetSize,
-                            currentFold,
-                            trainData,
-                            positiveTrainData,
-                            testData,
-                            evalsPerUser,
-                            userFilter,
-                            out
-                    );
-
-                    nUsersInCrossValidation += trainData.getUsersWithPreferences().count();
-                    double expectation = trainData.getUsersWithPreferences()
-                            .mapToDouble(user -> {
-                                long nu = itemIndex.getAllIidx().filter(item -> userFilter.apply(user).test(item)).count();
-                                if (nu == 0) {
-                                    return 1;
-                                }
-                                long k = Math.min(nu, 10);
-                                return k * 1.0 / nu;
-                            }).filter(v -> !Double.isInfinite(v) && !Double.isNaN(v)).sum() * 1.0 / trainData.numUsers();
-                    outExpectation.println(currentFold + "\t" + targetSize + "\t" + expectation);
+                    outExpectation.println(currentFold + "\t" + targetSizes[s] + "\t" + expectations[s][currentFold - 1]);
+                }
+            }
+
+            if (statistics != null) {
+                writeStatistics(statistics, conf.getResultsPath(), nUsersInCrossValidation);
+            } else {
+                evalsPerUser.setLength(nUsersInCrossValidation);
+                processEvals(evalsPerUser, conf.getResultsPath(), nUsersInCrossValidation);
+                if (!conf.isKeepPerUser()) {
+                    evalsPerUser.discard();
                 }
             }
+            if (checkpoint != null) {
+                checkpoint.finish();
+            }
         }
-        processEvals(evalsPerUser, conf.getResultsPath(), nUsersInCrossValidation);
     }
 
     /**
@@ -181,9 +216,7 @@ public class TargetSampling {
     public void runWithUnbiasedTest(String testPath) throws IOException {
         Timer.start("Starting...");
 
-        for (int i = 0; i < METRIC_NAMES.length; i++) {
-            METRIC_NAMES[i] += "@" + conf.getCutoff();
-        }
+        METRIC_NAMES = metricNames(conf.getCutoffs());
 
         LogManager.getLogManager().reset();
 
@@ -195,9 +228,15 @@ public class TargetSampling {
         FastPreferenceData<Long, Long> testData = SimpleFastPreferenceData.load(SimpleRatingPreferencesReader.get().read(testPath, lp, lp), userIndex, itemIndex);
         Timer.done("");
 
-        Map<String, Map<String, double[]>> evalsPerUser = new HashMap<>();
+        int[] targetSizes = conf.getTargetSizes();
+        ByteArrayOutputStream[] outPerSize = new ByteArrayOutputStream[targetSizes.length];
+        double[][] expectations = new double[targetSizes.length][conf.getNFolds()];
         int nUsersInCrossValidation = 0;
-        try (PrintStream out = new PrintStream(conf.getResultsPath() + TARGET_SAMPLING_FILE);
+        // In streaming mode the paired statistics are accumulated fold by fold, and per-user values are not stored
+        PairedStatistics statistics = conf.isStreamingStatistics() ? new PairedStatistics(METRIC_NAMES.length, conf.getStatisticsPairs()) : null;
+        try (Checkpoint checkpoint = conf.isCheckpoint() ? new Checkpoint(conf.getResultsPath(), experiment(testPath)) : null;
+                UserResultsStore evalsPerUser = statistics != null ? null : new UserResultsStore(conf.getResultsPath(), (long) userIndex.numUsers() * conf.getNFolds(), conf.isFloatResults());
+                PrintStream out = new PrintStream(conf.getResultsPath() + TARGET_SAMPLING_FILE);
                 PrintStream outExpectation = new PrintStream(conf.getResultsPath() + EXPECTED_INTERSECTION_RATIO_FILE)) {
             //Header
             outExpectation.println("fold\ttarget size\texpected intersection ratio in top n");
@@ -207,275 +246,740 @@ public class TargetSampling {
             }
             out.println();
 
-            //Run
-            for (int n : conf.getTargetSizes()) {
-                int targetSize = n;
-                nUsersInCrossValidation = 0;
+            //Run: each fold is read and trained once, and evaluated for all the target sizes
+            for (int s = 0; s < targetSizes.length; s++) {
+                outPerSize[s] = new ByteArrayOutputStream();
+            }
+            for (int currentFold = 1; currentFold <= conf.getNFolds(); currentFold++) {
+                System.out.println("Running fold " + currentFold);
+                FastPreferenceData<Long, Long> trainData = SimpleFastPreferenceData.load(SimpleRatingPreferencesReader.get().read(conf.getDataPath() + currentFold + "-data-train.txt", lp, lp), userIndex, itemIndex);
+                FastPreferenceData<Long, Long> positiveTrainData = TruncateRatings.run(trainData, conf.getThreshold());
+
+                runFold(userIndex, itemIndex, nUsersInCrossValidation, currentFold, trainData, positiveTrainData, testData, evalsPerUser, statistics, checkpoint, outPerSize, expectations);
+                Timer.done("...");
+
+                nUsersInCrossValidation += trainData.getUsersWithPreferences().count();
+            }
 
+            //Values, by target size and fold
+            for (int s = 0; s < targetSizes.length; s++) {
+                outPerSize[s].writeTo(out);
                 for (int currentFold = 1; currentFold <= conf.getNFolds(); currentFold++) {
-                    System.out.println("Running fold " + currentFold);
-                    FastPreferenceData<Long, Long> trainData = SimpleFastPreferenceData.load(SimpleRatingPreferencesReader.get().read(conf.getDataPath() + currentFold + "-data-train.txt", lp, lp), userIndex, itemIndex);
-                    FastPreferenceData<Long, Long> positiveTrainData = TruncateRatings.run(trainData, conf.getThreshold());
-                    //Sampler:
-                    Function<Long, IntPredicate> sampler = FastSamplers.uniform(trainData, FastSamplers.inTestForUser(testData), targetSize);
-                    Function<Long, IntPredicate> notTrainFilter = FastFilters.notInTrain(trainData);
-                    Function<Long, IntPredicate> userFilter = FastFilters.and(sampler, notTrainFilter);
-
-                    runSplit(userIndex, itemIndex, nUsersInCrossValidation, targetSize, currentFold, trainData, positiveTrainData, testData, evalsPerUser, userFilter, out);
-                    Timer.done("...");
-
-                    nUsersInCrossValidation += trainData.getUsersWithPreferences().count();
-                    double expectation = trainData.getUsersWithPreferences()
-                            .mapToDouble(user -> {
-                                long nu = itemIndex.getAllIidx().filter(item -> userFilter.apply(user).test(item)).count();
-                                if (nu == 0) {
-                                    return 1;
-                                }
-                                long k = Math.min(nu, 10);
-                                return k * 1.0 / nu;
-                            }).filter(v -> !Double.isInfinite(v) && !Double.isNaN(v)).sum() * 1.0 / trainData.numUsers();
-                    outExpectation.println(targetSize + "\t" + expectation);
+                    outExpectation.println(currentFold + "\t" + targetSizes[s] + "\t" + expectations[s][currentFold - 1]);
                 }
             }
+
+            if (statistics != null) {
+                writeStatistics(statistics, conf.getResultsPath(), nUsersInCrossValidation);
+            } else {
+                evalsPerUser.setLength(nUsersInCrossValidation);
+                processEvals(evalsPerUser, conf.getResultsPath(), nUsersInCrossValidation);
+                if (!conf.isKeepPerUser()) {
+                    evalsPerUser.discard();
+                }
+            }
+            if (checkpoint != null) {
+                checkpoint.finish();
+            }
         }
-        processEvals(evalsPerUser, conf.getResultsPath(), nUsersInCrossValidation);
     }
 
-    private void runSplit(
+    /**
+     * Target sets of all the users for a fold and target size. If a samples
+     * path is configured, they are read from the sample file of the same key
+     * when a previous run saved it, and drawn and saved otherwise.
+     *
+     * @param dataFingerprint fingerprint of the train and test data of the
+     * fold
+     * @param sampler draws the target sets
+     * @return target set of each user
+     */
+    private Function<Long, IidxSet> targetSets(
             FastUserIndex<Long> userIndex,
             FastItemIndex<Long> itemIndex,
-            int nUsersInCrossValidation,
+            int currentFold,
             int targetSize,
+            long dataFingerprint,
+            Supplier<Map<Long, IidxSet>> sampler) {
+        if (conf.getSamplesPath() == null) {
+            return sampler.get()::get;
+        }
+
+        String sampling = conf.isNestedTargetSets() ? "nested" : conf.isPopularityTargetSets() ? "popularity" : "uniform";
+        SamplerFile.Key key = new SamplerFile.Key(
+                new File(conf.getDataPath()).getName() + "-" + sampling,
+                currentFold,
+                targetSize,
+                RandomStreams.seed(conf.getSeed(), dataFingerprint));
+        String path = conf.getSamplesPath() + key.fileName();
+        if (new File(path).exists()) {
+            try {
+                return FastSamplers.read(userIndex, itemIndex, key, path);
+            } catch (IOException ex) {
+                System.out.println(ex.getMessage() + ": sample drawn again");
+            }
+        }
+        Map<Long, IidxSet> targetSets = sampler.get();
+        try {
+            FastSamplers.write(targetSets, userIndex, itemIndex, key, path);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return targetSets::get;
+    }
+
+    /**
+     * Description of the experiment for the checkpoint journal: the
+     * configuration and the fingerprint of the data files, so that a journal
+     * is not resumed on regenerated data.
+     *
+     * @param testPath unbiased test file, or null in cross validation
+     * @return description of the experiment
+     */
+    private String experiment(String testPath) {
+        List<String> files = new ArrayList<>();
+        files.add(conf.getDataPath() + "data.txt");
+        for (int currentFold = 1; currentFold <= conf.getNFolds(); currentFold++) {
+            files.add(conf.getDataPath() + currentFold + "-data-train.txt");
+            if (testPath == null) {
+                files.add(conf.getDataPath() + currentFold + "-data-test.txt");
+            }
+        }
+        if (testPath != null) {
+            files.add(testPath);
+        }
+        return conf.getExperiment() + Checkpoint.fingerprint(files);
+    }
+
+    /**
+     * Evaluates all the target sizes on one fold. The filler, the metrics,
+     * the test sets of the samplers and the recommenders do not depend on
+     * the target size, so they are built once for the fold, and each
+     * recommender is trained once and evaluated on all the target sizes.
+     *
+     * @param userIndex
+     * @param itemIndex
+     * @param nUsersInCrossValidation number of users evaluated in the
+     * previous folds
+     * @param currentFold
+     * @param trainData
+     * @param positiveTrainData
+     * @param testData
+     * @param evalsPerUser store of the per-user values, or null in streaming
+     * mode
+     * @param statistics streaming paired statistics, or null if per-user
+     * values are stored
+     * @param checkpoint journal of completed units, or null if checkpoints
+     * are disabled
+     * @param outPerSize output of each target size
+     * @param expectations expected intersection ratio of each target size
+     * and fold
+     */
+    private void runFold(
+            FastUserIndex<Long> userIndex,
+            FastItemIndex<Long> itemIndex,
+            int nUsersInCrossValidation,
             int currentFold,
             FastPreferenceData<Long, Long> trainData,
             FastPreferenceData<Long, Long> positiveTrainData,
             FastPreferenceData<Long, Long> testData,
-            Map<String, Map<String, double[]>> evalsPerUser,
-            Function<Long, IntPredicate> userFilter,
-            PrintStream out) throws IOException {
+            UserResultsStore evalsPerUser,
+            PairedStatistics statistics,
+            Checkpoint checkpoint,
+            ByteArrayOutputStream[] outPerSize,
+            double[][] expectations) {
 
         Set<Long> trainUsers = trainData.getUsersWithPreferences().collect(Collectors.toSet());
         Set<Long> targetUsers = trainUsers;
-        Filler<Long, Long> filler = new Filler<>(conf.getFillMode(), itemIndex, userIndex, trainData);
+        Filler<Long, Long> filler = new Filler<>(conf.getFillMode(), itemIndex, userIndex, RandomStreams.seed(conf.getSeed(), FILLER_STREAM, currentFold));
 
         /////////////
         // METRICS //
         /////////////
-        Map<String, AbstractRecommendationMetric<Long, Long>> metrics = new HashMap<>();
-
-        int cutoff = conf.getCutoff();
         int threshold = conf.getThreshold();
-        BinaryRelevanceModel<Long, Long> binRel = new BinaryRelevanceModel<>(false, testData, threshold);
-        NDCG.NDCGRelevanceModel ndcgModel = new NDCG.NDCGRelevanceModel<>(false, testData, threshold);
-        metrics.put("P@" + cutoff, new Precision<>(cutoff, binRel));
-        metrics.put("nDCG@" + cutoff, new NDCG<>(cutoff, ndcgModel));
-        metrics.put("Recall@" + cutoff, new Recall<>(cutoff, binRel));
-        metrics.put("Coverage@" + cutoff, new Coverage<>(cutoff));
+        RelevanceIndex relevance = new RelevanceIndex(testData, threshold, conf.getCutoff());
+        FastMetrics metrics = new FastMetrics(relevance, conf.getCutoffs());
 
         ////////////////////////////////////////////////
         // GENERATING RECOMMENDATIONS AND EVALUATIONS //
         ////////////////////////////////////////////////
         Map<String, Supplier<Recommender<Long, Long>>> recMap = new HashMap<>();
-        recMap.put("Random", () -> new RandomRecommender<>(userIndex, itemIndex));
+        recMap.put("Random", () -> new RandomRecommender<>(userIndex, itemIndex, RandomStreams.seed(conf.getSeed(), RANDOM_STREAM, currentFold)));
         recMap.put("Popularity", () -> new PopularityRecommender<>(trainData));
         recMap.put("Average Rating", () -> new AverageRatingRecommender<>(trainData, threshold));
 
+        UserSimilarityIndex simIndex = getUserSimilarityIndex(trainData, currentFold, checkpoint);
+        Map<String, UserNeighborhoodSweep<Long, Long>> sweeps = new HashMap<>();
         if (conf.isAllRecs()) {
-            recMap.putAll(getAllRecs(userIndex, itemIndex, trainData, positiveTrainData));
+            recMap.putAll(getAllRecs(userIndex, itemIndex, trainData, positiveTrainData, simIndex, RandomStreams.seed(conf.getSeed(), IMF_STREAM, currentFold), sweeps));
         } else {
-            recMap.putAll(getFullAndTestRecs(userIndex, itemIndex, trainData, positiveTrainData));
+            recMap.putAll(getFullAndTestRecs(userIndex, itemIndex, trainData, positiveTrainData, simIndex, RandomStreams.seed(conf.getSeed(), IMF_STREAM, currentFold)));
+        }
+
+        //Samplers:
+        Map<Long, IidxSet> testSets = FastSamplers.inTestForUser(testData);
+        // One random order per user serves all the target sizes
+        NestedSampler<Long, Long> nestedSampler = conf.isNestedTargetSets()
+                ? FastSamplers.nested(trainData, testSets, RandomStreams.seed(conf.getSeed(), SAMPLER_STREAM, currentFold))
+                : null;
+        // Popularity of the items in the training data, as weights of the sampler
+        double[] popularity = conf.isPopularityTargetSets()
+                ? trainData.getAllIidx().mapToDouble(trainData::numUsers).toArray()
+                : null;
+        // Saved samples are only reused on the same train and test data
+        long dataFingerprint = conf.getSamplesPath() != null
+                ? RandomStreams.seed(UserSimilarityIndex.fingerprint(trainData), UserSimilarityIndex.fingerprint(testData))
+                : 0;
+        int[] targetSizes = conf.getTargetSizes();
+        CandidateIndex<Long, Long> candidateIndex = new CandidateIndex<>(trainData, targetSizes.length, s -> targetSets(userIndex, itemIndex, currentFold, targetSizes[s], dataFingerprint, () -> nestedSampler != null
+                ? nestedSampler.targetSets(targetSizes[s])
+                : popularity != null
+                ? FastSamplers.sampleSets(trainData, testSets, targetSizes[s], popularity, RandomStreams.seed(conf.getSeed(), SAMPLER_STREAM, currentFold, targetSizes[s]))
+                : FastSamplers.uniformSets(trainData, testSets, targetSizes[s], RandomStreams.seed(conf.getSeed(), SAMPLER_STREAM, currentFold, targetSizes[s]))));
+        Map<Long, int[]> candidates = candidates(itemIndex.numItems(), targetUsers, candidateIndex);
+        for (int s = 0; s < targetSizes.length; s++) {
+            expectations[s][currentFold - 1] = candidateIndex.expectedIntersectionRatio(s, conf.getCutoff());
         }
 
         eval(
                 userIndex,
                 itemIndex,
                 nUsersInCrossValidation,
-                targetSize,
+                targetSizes,
                 currentFold,
                 targetUsers,
-                userFilter,
+                candidateIndex,
+                candidates,
                 recMap,
+                sweeps,
                 metrics,
                 evalsPerUser,
-                out,
+                statistics,
+                checkpoint,
+                outPerSize,
                 filler);
+        if (statistics != null) {
+            statistics.endFold();
+        }
+    }
+
+    /**
+     * Candidate items of the target users for all the sizes: the union of
+     * their candidates for each size. Users whose union is not much smaller
+     * than the catalog are left out, and are ranked over all the items not in
+     * train.
+     *
+     * @param nItems number of items in the catalog
+     * @param targetUsers
+     * @param candidateIndex candidates of each target size
+     * @return candidates of each user that has them
+     */
+    private static Map<Long, int[]> candidates(
+            int nItems,
+            Set<Long> targetUsers,
+            CandidateIndex<Long, Long> candidateIndex) {
+        Map<Long, int[]> candidates = new ConcurrentHashMap<>();
+        targetUsers.parallelStream().forEach(user -> {
+            IidxSet union = candidateIndex.candidates(0, user);
+            for (int s = 1; s < candidateIndex.numSizes(); s++) {
+                union = IidxSet.union(union, candidateIndex.candidates(s, user), nItems);
+            }
+            if (CandidateIndex.isSmall(union.size(), nItems)) {
+                candidates.put(user, union.toArray());
+            }
+        });
+        return candidates;
     }
 
+    private String[] metricNames(int[] cutoffs) {
+        String[] metricNames = new String[cutoffs.length * METRICS.length];
+        for (int c = 0; c < cutoffs.length; c++) {
+            for (int i = 0; i < METRICS.length; i++) {
+                metricNames[c * METRICS.length + i] = METRICS[i] + "@" + cutoffs[c];
+            }
+        }
+        return metricNames;
+    }
+
+    /**
+     * Evaluates the recommenders for all the target sizes of a fold. The
+     * ranking of each user is computed once per recommender over all the
+     * items not in train, and the recommendation for each target size is
+     * the top of that ranking restricted to the target set of the size.
+     * Users with candidates, and recommenders that can score candidates
+     * apart, are ranked over the candidates only, which gives the same
+     * restricted rankings.
+     * This gives the same recommendations as ranking each target set
+     * separately, since the rankings are a total order on (score, iidx).
+     * The lists of all the sizes are then evaluated together on item
+     * indices, in parallel over the users. The recommenders of a
+     * neighborhood sweep are evaluated together in batches: when one of them
+     * is reached, it is evaluated with the next recommenders of the sweep in
+     * turn, up to a bounded number of per-user values. Recommenders already
+     * completed in the checkpoint journal are replayed from it instead.
+     */
     private void eval(
             FastUserIndex<Long> userIndex,
             FastItemIndex<Long> itemIndex,
             int nUsersInCrossValidation,
-            int targetSize,
+            int[] targetSizes,
             int currentFold,
             Set<Long> targetUsers,
-            Function<Long, IntPredicate> userFilter,
+            CandidateIndex<Long, Long> candidateIndex,
+            Map<Long, int[]> candidates,
             Map<String, Supplier<Recommender<Long, Long>>> recMap,
-            Map<String, AbstractRecommendationMetric<Long, Long>> metrics,
-            Map<String, Map<String, double[]>> evalsPerUser,
-            PrintStream out,
+            Map<String, UserNeighborhoodSweep<Long, Long>> sweeps,
+            FastMetrics metrics,
+            UserResultsStore evalsPerUser,
+            PairedStatistics statistics,
+            Checkpoint checkpoint,
+            ByteArrayOutputStream[] outPerSize,
             Filler<Long, Long> filler) {
 
-        int m = userIndex.numUsers();
-        int mTrain = targetUsers.size();
-        recMap.keySet().stream().forEachOrdered(recNameAux -> {
-            String recName = targetSize + "\t" + recNameAux;
-            if (!evalsPerUser.containsKey(recName)) {
-                Map<String, double[]> values = new HashMap<>();
-                for (String metric : METRIC_NAMES) {
-                    values.put(metric, new double[m * conf.getNFolds()]);
+        Function<Long, IntPredicate> notTrainFilter = candidateIndex.notInTrain();
+        List<String> recNames = new ArrayList<>(recMap.keySet());
+        int batchSize = (int) Math.max(1, SWEEP_BATCH_VALUES / ((long) targetSizes.length * metrics.numValues() * userIndex.numUsers()));
+        Map<String, Checkpoint.Unit> sweepUnits = new HashMap<>();
+        recNames.stream().forEachOrdered(recNameAux -> {
+            Checkpoint.Unit unit = checkpoint != null ? replay(checkpoint, currentFold, recNameAux) : null;
+            if (unit != null) {
+                System.out.print("Resuming " + recNameAux);
+            } else {
+                System.out.print("Running " + recNameAux);
+                unit = sweepUnits.remove(recNameAux);
+                UserNeighborhoodSweep<Long, Long> sweep = sweeps.get(recNameAux);
+                if (unit == null && sweep != null) {
+                    // The next recommenders of the sweep in turn are evaluated together, and kept until their turn
+                    List<String> batch = new ArrayList<>();
+                    for (String name : recNames.subList(recNames.indexOf(recNameAux), recNames.size())) {
+                        if (batch.size() < batchSize && sweeps.get(name) == sweep && (checkpoint == null || !checkpoint.contains(currentFold, name))) {
+                            batch.add(name);
+                        }
+                    }
+                    UserNeighborhoodSweep<Long, Long> batchSweep = sweep.subset(batch);
+                    Checkpoint.Unit[] units = evalRecommenders(userIndex, targetSizes, currentFold, targetUsers, candidateIndex,
+                            batch,
+                            (user, rankings) -> {
+                                int[] userCandidates = candidates.get(user);
+                                if (userCandidates != null) {
+                                    batchSweep.getRankings(userIndex.user2uidx(user), userCandidates, rankings);
+                                } else {
+                                    batchSweep.getRankings(userIndex.user2uidx(user), notTrainFilter.apply(user), rankings);
+                                }
+                            },
+                            metrics, filler);
+                    for (int r = 0; r < units.length; r++) {
+                        sweepUnits.put(batch.get(r), units[r]);
+                    }
+                    unit = sweepUnits.remove(recNameAux);
+                } else if (unit == null) {
+                    FastRecommender<Long, Long> recommendation = (FastRecommender<Long, Long>) recMap.get(recNameAux).get();
+                    unit = evalRecommenders(userIndex, targetSizes, currentFold, targetUsers, candidateIndex,
+                            Collections.singletonList(recNameAux),
+                            (user, rankings) -> {
+                                int uidx = userIndex.user2uidx(user);
+                                int[] userCandidates = candidates.get(user);
+                                if (userCandidates != null && recommendation instanceof FastCandidateRecommender) {
+                                    ((FastCandidateRecommender<Long, Long>) recommendation).getRanking(uidx, userCandidates, itemIndex.numItems(), rankings[0]);
+                                } else if (recommendation instanceof FastRankedRecommender) {
+                                    ((FastRankedRecommender<Long, Long>) recommendation).getRanking(uidx, itemIndex.numItems(), notTrainFilter.apply(user), rankings[0]);
+                                } else {
+                                    rankings[0].clear();
+                                    rankings[0].addAll(recommendation.getRecommendation(uidx, itemIndex.numItems(), notTrainFilter.apply(user)).getIidxs());
+                                }
+                            },
+                            metrics, filler)[0];
+                }
+                if (checkpoint != null) {
+                    try {
+                        checkpoint.save(currentFold, recNameAux, unit);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
                 }
-                evalsPerUser.put(recName, values);
             }
 
-            System.out.print("Running " + recName);
-            FastRecommender<Long, Long> recommendation = (FastRecommender<Long, Long>) recMap.get(recNameAux).get();
-            Function<Long, Recommendation<Long, Long>> recProvider = user -> {
-                FastRecommendation rec = recommendation.getRecommendation(userIndex.user2uidx(user), conf.getCutoff(), userFilter.apply(user));
-                return new Recommendation<>(userIndex.uidx2user(rec.getUidx()), rec.getIidxs().stream().map(iv -> new Tuple2od<>(itemIndex.iidx2item(iv.v1), iv.v2)).collect(Collectors.toList()));
-            };
-
-            Map<String, double[]> actualValues = new HashMap<>();
-            for (String metric : METRIC_NAMES) {
-                actualValues.put(metric, new double[m]);
-            }
-
-            targetUsers.stream().parallel()
-                    .map(user -> recProvider.apply(user))
-                    .map(rec -> {
-                        List<Tuple2id> items = rec.getItems()
-                        .stream()
-                        .map(ip -> new Tuple2id(itemIndex.item2iidx(ip.v1), ip.v2))
-                        .collect(Collectors.toList());
-                        List<Tuple2od<Long>> newItems = filler
-                        .fill(items, conf.getCutoff(), userFilter.apply(rec.getUser()), rec.getUser())
-                        .stream()
-                        .map(ip -> new Tuple2od<>(itemIndex.iidx2item(ip.v1), ip.v2))
-                        .collect(Collectors.toList());
-                        return new Recommendation<>(rec.getUser(), newItems);
-                    }).forEachOrdered(rec -> {
-                        metrics.forEach((metricName, metric) -> {
-                            actualValues.get(metricName)[userIndex.user2uidx(rec.getUser())] = metric.evaluate(rec);
-                        });
-                    });
-
-            Map<String, double[]> pastValues = evalsPerUser.get(recName);
-
-            int i = 0;
-            for (Long user : targetUsers) {
-                int u = userIndex.user2uidx(user);
-                for (String metricName : METRIC_NAMES) {
-                    double value = actualValues.get(metricName)[u];
-                    pastValues.get(metricName)[nUsersInCrossValidation + i] = value;
+            for (int s = 0; s < targetSizes.length; s++) {
+                double[][] values = unit.getValues()[s];
+                if (evalsPerUser != null) {
+                    String recName = targetSizes[s] + "\t" + recNameAux;
+                    for (int k = 0; k < METRIC_NAMES.length; k++) {
+                        int column = evalsPerUser.column(recName, METRIC_NAMES[k]);
+                        for (int i = 0; i < values[k].length; i++) {
+                            evalsPerUser.set(column, nUsersInCrossValidation + i, values[k][i]);
+                        }
+                    }
+                } else {
+                    statistics.add(targetSizes[s], recNameAux, values);
                 }
-                i++;
-            }
 
-            //Values
-            out.print(currentFold);
-            out.print("\t");
-            out.print(recName);
-            for (String metricName : METRIC_NAMES) {
-                out.print("\t" + DoubleStream.of(actualValues.get(metricName)).sum() / mTrain);
+                //Values
+                new PrintStream(outPerSize[s]).println(unit.getLines()[s]);
             }
-            out.println();
 
             Timer.done("   done");
         });
 
     }
 
-    private void processEvals(Map<String, Map<String, double[]>> evalsPerUser, String resultsPath, int nUsersInCrossValidation) throws FileNotFoundException {
+    private static Checkpoint.Unit replay(Checkpoint checkpoint, int currentFold, String recName) {
+        try {
+            return checkpoint.get(currentFold, recName);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Evaluates a group of recommenders on all the target sizes of a fold,
+     * from the rankings of all the recommenders for each user.
+     *
+     * @param recNames recommenders of the group
+     * @param rankings writes the ranking of each recommender of the group
+     * for a user, over the items not in train, into the given lists
+     * @return summary line and values of the target users, in the order of
+     * targetUsers, for each recommender and target size
+     */
+    private Checkpoint.Unit[] evalRecommenders(
+            FastUserIndex<Long> userIndex,
+            int[] targetSizes,
+            int currentFold,
+            Set<Long> targetUsers,
+            CandidateIndex<Long, Long> candidateIndex,
+            List<String> recNames,
+            BiConsumer<Long, RankedList[]> rankings,
+            FastMetrics metrics,
+            Filler<Long, Long> filler) {
+
+        int m = userIndex.numUsers();
+        int mTrain = targetUsers.size();
+        int cutoff = conf.getCutoff();
+
+        double[][][][] actualValues = new double[recNames.size()][targetSizes.length][metrics.numValues()][m];
+        ThreadLocal<int[][]> lists = ThreadLocal.withInitial(() -> new int[targetSizes.length][cutoff]);
+        ThreadLocal<int[]> lengths = ThreadLocal.withInitial(() -> new int[targetSizes.length]);
+        ThreadLocal<RankedList[]> rankedLists = ThreadLocal.withInitial(() -> {
+            RankedList[] recLists = new RankedList[recNames.size()];
+            for (int r = 0; r < recLists.length; r++) {
+                recLists[r] = new RankedList();
+            }
+            return recLists;
+        });
+        // The fill stream of a recommender is keyed by its name, so that it
+        // does not depend on how recommenders are grouped for evaluation
+        int[] fillKeys = recNames.stream().mapToInt(String::hashCode).toArray();
+
+        targetUsers.stream().parallel().forEach(user -> {
+            int uidx = userIndex.user2uidx(user);
+            RankedList[] userRankings = rankedLists.get();
+            rankings.accept(user, userRankings);
+            int[][] userLists = lists.get();
+            int[] userLengths = lengths.get();
+            for (int r = 0; r < recNames.size(); r++) {
+                RankedList ranking = userRankings[r];
+                for (int s = 0; s < targetSizes.length; s++) {
+                    IidxSet filter = candidateIndex.candidates(s, user);
+                    int[] list = userLists[s];
+                    int n = 0;
+                    for (int i = 0; i < ranking.size() && n < cutoff; i++) {
+                        int iidx = ranking.iidx(i);
+                        if (filter.test(iidx)) {
+                            list[n++] = iidx;
+                        }
+                    }
+                    userLengths[s] = filler.fill(list, n, cutoff, filter, uidx, s, fillKeys[r]);
+                }
+                metrics.evaluate(uidx, userLists, userLengths, actualValues[r]);
+            }
+        });
+
+        Checkpoint.Unit[] units = new Checkpoint.Unit[recNames.size()];
+        for (int r = 0; r < recNames.size(); r++) {
+            String[] lines = new String[targetSizes.length];
+            double[][][] values = new double[targetSizes.length][METRIC_NAMES.length][mTrain];
+            for (int s = 0; s < targetSizes.length; s++) {
+                int i = 0;
+                for (Long user : targetUsers) {
+                    int u = userIndex.user2uidx(user);
+                    for (int k = 0; k < METRIC_NAMES.length; k++) {
+                        values[s][k][i] = actualValues[r][s][k][u];
+                    }
+                    i++;
+                }
+
+                StringBuilder line = new StringBuilder();
+                line.append(currentFold).append("\t").append(targetSizes[s]).append("\t").append(recNames.get(r));
+                for (int k = 0; k < METRIC_NAMES.length; k++) {
+                    line.append("\t").append(DoubleStream.of(actualValues[r][s][k]).sum() / mTrain);
+                }
+                lines[s] = line.toString();
+            }
+            units[r] = new Checkpoint.Unit(lines, values);
+            actualValues[r] = null;
+        }
+        return units;
+    }
+
+    private void processEvals(UserResultsStore evalsPerUser, String resultsPath, int nUsersInCrossValidation) throws FileNotFoundException {
         try (
                 PrintStream outPvalues = new PrintStream(resultsPath + P_VALUES_FILE);
                 PrintStream outTiesAtZero = new PrintStream(resultsPath + TIES_AT_ZERO_FILE);
                 PrintStream outTies = new PrintStream(resultsPath + TIES_FILE)) {
             //Header
-            outPvalues.print("target size\t");
-            outPvalues.print("recommender system 1\trecommender system 2");
-            for (String metric : METRIC_NAMES) {
-                outPvalues.print("\t" + metric);
+            printStatisticsHeader(outPvalues);
+            printStatisticsHeader(outTies);
+            printStatisticsHeader(outTiesAtZero);
+
+            // Recommenders grouped by target size, in the order of the store
+            List<String> recNames = evalsPerUser.recNames();
+            Map<String, List<String>> recsBySize = new LinkedHashMap<>();
+            for (String rec : recNames) {
+                recsBySize.computeIfAbsent(rec.split("\t")[0], n -> new ArrayList<>()).add(rec);
             }
-            outPvalues.println();
 
-            outTies.print("target size\t");
-            outTies.print("recommender system 1\trecommender system 2");
-            for (String metric : METRIC_NAMES) {
-                outTies.print("\t" + metric);
+            // Pairs in output order: by first recommender, then by second
+            List<String[]> pairs = new ArrayList<>();
+            for (String rec1 : recNames) {
+                List<String> sameSize = recsBySize.get(rec1.split("\t")[0]);
+                for (int j = sameSize.indexOf(rec1) + 1; j < sameSize.size(); j++) {
+                    String rec2 = sameSize.get(j);
+                    if (PairedStatistics.isCompared(conf.getStatisticsPairs(), rec1.split("\t")[1], rec2.split("\t")[1])) {
+                        pairs.add(new String[]{rec1, rec2});
+                    }
+                }
             }
-            outTies.println();
 
-            outTiesAtZero.print("target size\t");
-            outTiesAtZero.print("recommender system 1\trecommender system 2");
-            for (String metric : METRIC_NAMES) {
-                outTiesAtZero.print("\t" + metric);
+            Map<String, int[]> columns = new HashMap<>();
+            for (String rec : recNames) {
+                int[] recColumns = new int[METRIC_NAMES.length];
+                for (int k = 0; k < METRIC_NAMES.length; k++) {
+                    recColumns[k] = evalsPerUser.column(rec, METRIC_NAMES[k]);
+                }
+                columns.put(rec, recColumns);
             }
-            outTiesAtZero.println();
 
-            List<String> recNames = new ArrayList<>(evalsPerUser.keySet());
-            TTest ttest = new TTest();
+            // Pairs are compared in parallel, each thread reading only the
+            // two columns of the current metric into its own buffers
+            PairedStatistics.Accumulator[][] results = new PairedStatistics.Accumulator[pairs.size()][];
+            ThreadLocal<double[][]> buffers = ThreadLocal.withInitial(() -> new double[2][nUsersInCrossValidation]);
+            IntStream.range(0, pairs.size()).parallel().forEach(p -> {
+                int[] columns1 = columns.get(pairs.get(p)[0]);
+                int[] columns2 = columns.get(pairs.get(p)[1]);
+                double[][] values = buffers.get();
+                results[p] = new PairedStatistics.Accumulator[METRIC_NAMES.length];
+                for (int k = 0; k < METRIC_NAMES.length; k++) {
+                    evalsPerUser.read(columns1[k], values[0]);
+                    evalsPerUser.read(columns2[k], values[1]);
+                    results[p][k] = PairedStatistics.Accumulator.of(values[0], values[1]);
+                }
+            });
+
+            for (int p = 0; p < pairs.size(); p++) {
+                String[] rec1 = pairs.get(p)[0].split("\t");
+                String[] rec2 = pairs.get(p)[1].split("\t");
+                printStatistics(outPvalues, outTies, outTiesAtZero, Integer.valueOf(rec1[0]), rec1[1], rec2[1], results[p], nUsersInCrossValidation);
+            }
+
+            if (conf.getResamples() > 0) {
+                resamplingTests(evalsPerUser, pairs, columns, resultsPath, nUsersInCrossValidation);
+            }
+        }
+    }
+
+    /**
+     * Sign-flip permutation test and bootstrap confidence interval of the
+     * mean difference of each pair and metric. Pairs are tested in parallel,
+     * each with its own random stream, so results do not depend on the
+     * number of threads.
+     */
+    private void resamplingTests(
+            UserResultsStore evalsPerUser,
+            List<String[]> pairs,
+            Map<String, int[]> columns,
+            String resultsPath,
+            int nUsersInCrossValidation) throws FileNotFoundException {
+        System.out.print("Running resampling tests");
+        ResamplingTests tests = new ResamplingTests(conf.getResamples(), conf.getConfidence(), nUsersInCrossValidation, METRIC_NAMES.length);
+        double[][][] results = new double[pairs.size()][][];
+        IntStream.range(0, pairs.size()).parallel().forEach(p -> {
+            results[p] = tests.test(
+                    evalsPerUser,
+                    columns.get(pairs.get(p)[0]),
+                    columns.get(pairs.get(p)[1]),
+                    RandomStreams.of(conf.getSeed(), RESAMPLING_STREAM, p));
+        });
+
+        try (
+                PrintStream outPvalues = new PrintStream(resultsPath + PERMUTATION_P_VALUES_FILE);
+                PrintStream outIntervals = new PrintStream(resultsPath + CONFIDENCE_INTERVALS_FILE)) {
+            //Header
+            printStatisticsHeader(outPvalues);
+            outIntervals.print("target size\t");
+            outIntervals.print("recommender system 1\trecommender system 2");
+            for (String metric : METRIC_NAMES) {
+                outIntervals.print("\t" + metric + " lower\t" + metric + " upper");
+            }
+            outIntervals.println();
 
-            for (String recName : recNames) {
-                Map<String, double[]> values = evalsPerUser.get(recName);
-                for (String metric : METRIC_NAMES) {
-                    double[] oldValues = values.get(metric);
-                    values.put(metric, Arrays.copyOf(oldValues, nUsersInCrossValidation));
+            for (int p = 0; p < pairs.size(); p++) {
+                String[] rec1 = pairs.get(p)[0].split("\t");
+                String[] rec2 = pairs.get(p)[1].split("\t");
+                outPvalues.print(rec1[0] + "\t" + rec1[1] + "\t" + rec2[1]);
+                outIntervals.print(rec1[0] + "\t" + rec1[1] + "\t" + rec2[1]);
+                for (int k = 0; k < METRIC_NAMES.length; k++) {
+                    outPvalues.print("\t" + results[p][k][ResamplingTests.P_VALUE]);
+                    outIntervals.print("\t" + results[p][k][ResamplingTests.LOWER] + "\t" + results[p][k][ResamplingTests.UPPER]);
                 }
+                outPvalues.println();
+                outIntervals.println();
             }
+        }
+        Timer.done("   done");
+    }
 
+    /**
+     * Writes the paired statistics accumulated in streaming mode, in the same
+     * format and order as {@link #processEvals}.
+     */
+    private void writeStatistics(PairedStatistics statistics, String resultsPath, int nUsersInCrossValidation) throws FileNotFoundException {
+        if (conf.getResamples() > 0) {
+            System.out.println("Resampling tests need the per-user values, and are not run in streaming mode");
+        }
+        try (
+                PrintStream outPvalues = new PrintStream(resultsPath + P_VALUES_FILE);
+                PrintStream outTiesAtZero = new PrintStream(resultsPath + TIES_AT_ZERO_FILE);
+                PrintStream outTies = new PrintStream(resultsPath + TIES_FILE)) {
+            //Header
+            printStatisticsHeader(outPvalues);
+            printStatisticsHeader(outTies);
+            printStatisticsHeader(outTiesAtZero);
+
+            // Recommenders of all the target sizes, in the order in which they were added
+            List<Integer> targetSizes = statistics.targetSizes();
+            Set<String> recSet = new LinkedHashSet<>();
+            for (int n : targetSizes) {
+                recSet.addAll(statistics.recNames(n));
+            }
+            List<String> recNames = new ArrayList<>(recSet);
             for (int i = 0; i < recNames.size(); i++) {
-                String rec1 = recNames.get(i);
-                String rec1Name = rec1.split("\t")[1];
-                int n1 = Integer.valueOf(rec1.split("\t")[0]);
-                Map<String, double[]> values1 = evalsPerUser.get(rec1);
-
-                for (int j = i + 1; j < recNames.size(); j++) {
-                    String rec2 = recNames.get(j);
-                    String rec2Name = rec2.split("\t")[1];
-                    int n2 = Integer.valueOf(rec2.split("\t")[0]);
-                    if (n1 != n2) {
-                        continue;
-                    }
-                    outPvalues.print(n1 + "\t");
-                    outTies.print(n1 + "\t");
-                    outTiesAtZero.print(n1 + "\t");
-
-                    Map<String, double[]> values2 = evalsPerUser.get(rec2);
-                    outPvalues.print(rec1Name + "\t" + rec2Name);
-                    outTies.print(rec1Name + "\t" + rec2Name);
-                    outTiesAtZero.print(rec1Name + "\t" + rec2Name);
-                    for (String metric : METRIC_NAMES) {
-                        double p_value = ttest.pairedTTest(values1.get(metric), values2.get(metric));
-                        double nTies = nTies(values1.get(metric), values2.get(metric));
-                        double nTiesAtZero = nTiesAtZero(values1.get(metric), values2.get(metric));
-                        outPvalues.print("\t" + p_value);
-                        outTies.print("\t" + nTies * 1.0 / nUsersInCrossValidation);
-                        outTiesAtZero.print("\t" + nTiesAtZero * 1.0 / nUsersInCrossValidation);
+                String rec1Name = recNames.get(i);
+                for (int n : targetSizes) {
+                    for (int j = i + 1; j < recNames.size(); j++) {
+                        String rec2Name = recNames.get(j);
+                        if (!PairedStatistics.isCompared(conf.getStatisticsPairs(), rec1Name, rec2Name)) {
+                            continue;
+                        }
+                        PairedStatistics.Accumulator[] accumulators = statistics.get(n, rec1Name, rec2Name);
+                        if (accumulators == null) {
+                            System.out.println("No values of " + rec1Name + " and " + rec2Name + " for target size " + n + ": pair skipped");
+                            continue;
+                        }
+                        printStatistics(outPvalues, outTies, outTiesAtZero, n, rec1Name, rec2Name, accumulators, nUsersInCrossValidation);
                     }
-                    outPvalues.println();
-                    outTies.println();
-                    outTiesAtZero.println();
                 }
             }
         }
     }
 
+    private void printStatistics(
+            PrintStream outPvalues,
+            PrintStream outTies,
+            PrintStream outTiesAtZero,
+            int targetSize,
+            String rec1Name,
+            String rec2Name,
+            PairedStatistics.Accumulator[] accumulators,
+            int nUsersInCrossValidation) {
+        outPvalues.print(targetSize + "\t" + rec1Name + "\t" + rec2Name);
+        outTies.print(targetSize + "\t" + rec1Name + "\t" + rec2Name);
+        outTiesAtZero.print(targetSize + "\t" + rec1Name + "\t" + rec2Name);
+        for (int k = 0; k < METRIC_NAMES.length; k++) {
+            outPvalues.print("\t" + accumulators[k].pValue());
+            outTies.print("\t" + accumulators[k].ties() * 1.0 / nUsersInCrossValidation);
+            outTiesAtZero.print("\t" + accumulators[k].tiesAtZero() * 1.0 / nUsersInCrossValidation);
+        }
+        outPvalues.println();
+        outTies.println();
+        outTiesAtZero.println();
+    }
+
+    private void printStatisticsHeader(PrintStream out) {
+        out.print("target size\t");
+        out.print("recommender system 1\trecommender system 2");
+        for (String metric : METRIC_NAMES) {
+            out.print("\t" + metric);
+        }
+        out.println();
+    }
+
+    /**
+     * Index of the cosine similarity between training users, with as many
+     * neighbors as the largest k of the kNN recommenders in the
+     * configuration. With checkpoints, the index of each fold is saved next
+     * to the journal, and loaded instead of computed when the run is resumed
+     * and the index was computed from the same training data. The file is
+     * deleted with the journal when the run completes.
+     *
+     * @param trainData training data of the fold
+     * @param currentFold
+     * @param checkpoint journal of completed units, or null if checkpoints
+     * are disabled
+     * @return the index
+     */
+    private UserSimilarityIndex getUserSimilarityIndex(
+            FastPreferenceData<Long, Long> trainData,
+            int currentFold,
+            Checkpoint checkpoint) {
+        int k = conf.isAllRecs()
+                ? IntStream.concat(Arrays.stream(conf.getKnnParamK()), Arrays.stream(conf.getNormKnnParamK())).max().orElse(0)
+                : IntStream.of(conf.getKnnFullParamK(), conf.getKnnTestParamK(), conf.getNormKnnFullParamK(), conf.getNormKnnTestParamK()).max().getAsInt();
+        if (checkpoint == null) {
+            return UserSimilarityIndex.cosine(trainData, 0.5, k);
+        }
+        String path = checkpoint.file(USER_SIMILARITY_FILE + currentFold + ".bin");
+        long fingerprint = UserSimilarityIndex.fingerprint(trainData);
+        try {
+            if (checkpoint.isResumed() && new File(path).exists()) {
+                UserSimilarityIndex index = UserSimilarityIndex.load(path, fingerprint);
+                if (index != null && index.numUsers() == trainData.numUsers() && index.getK() >= k) {
+                    return index;
+                }
+            }
+            UserSimilarityIndex index = UserSimilarityIndex.cosine(trainData, 0.5, k);
+            index.save(path, fingerprint);
+            return index;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
     private Map<String, Supplier<Recommender<Long, Long>>> getAllRecs(
             FastUserIndex<Long> userIndex,
             FastItemIndex<Long> itemIndex,
             FastPreferenceData<Long, Long> trainData,
-            FastPreferenceData<Long, Long> positiveTrainData) {
+            FastPreferenceData<Long, Long> positiveTrainData,
+            UserSimilarityIndex simIndex,
+            long imfSeed,
+            Map<String, UserNeighborhoodSweep<Long, Long>> sweeps) {
         Map<String, Supplier<Recommender<Long, Long>>> recMap = new HashMap<>();
 
-        UserSimilarity<Long> sim = new VectorCosineUserSimilarity<>(trainData, 0.5, true);
+        // The kNN grid is evaluated as a single sweep over k
+        UserNeighborhoodSweep<Long, Long> sweep = new UserNeighborhoodSweep<>(positiveTrainData, simIndex, 1);
         for (int k : conf.getKnnParamK()) {
-            recMap.put("kNN (k=" + k + ")", () -> new UserNeighborhoodRecommender<>(positiveTrainData, new TopKUserNeighborhood<>(sim, k), 1));
+            String name = "kNN (k=" + k + ")";
+            recMap.put(name, () -> new DenseUserNeighborhoodRecommender<>(positiveTrainData, simIndex.neighborhood(userIndex, k), 1));
+            sweep.add(name, k);
+            sweeps.put(name, sweep);
         }
 
         for (int k : conf.getNormKnnParamK()) {
             for (int min : conf.getNormKnnParamMin()) {
-                recMap.put("Normalized kNN (k=" + k + ", min=" + min + ")", () -> new NormUserNeighborhoodRecommenderWithMinimum<>(
+                String name = "Normalized kNN (k=" + k + ", min=" + min + ")";
+                recMap.put(name, () -> new NormUserNeighborhoodRecommenderWithMinimum<>(
                         positiveTrainData,
-                        new TopKUserNeighborhood<>(sim, k), 1, min));
+                        simIndex.neighborhood(userIndex, k), 1, min));
+                sweep.addNormalized(name, k, min);
+                sweeps.put(name, sweep);
             }
         }
 
@@ -483,8 +987,8 @@ public class TargetSampling {
         for (int k : conf.getImfParamK()) {
             for (double lambda : conf.getImfParamLambda()) {
                 for (double alpha : conf.getImfParamAlpha()) {
-                    recMap.put("iMF (k=" + k + ", lambda=" + lambda + ", alpha=" + alpha + ")", () -> new MFRecommender<>(userIndex, itemIndex,
-                            new HKVFactorizer<Long, Long>(lambda, (double x) -> 1 + alpha * x, numIter).factorize(k, trainData)));
+                    recMap.put("iMF (k=" + k + ", lambda=" + lambda + ", alpha=" + alpha + ")", () -> new CandidateMFRecommender<>(userIndex, itemIndex,
+                            factorize(k, lambda, alpha, numIter, trainData, imfSeed)));
                 }
             }
         }
@@ -496,70 +1000,57 @@ public class TargetSampling {
             FastUserIndex<Long> userIndex,
             FastItemIndex<Long> itemIndex,
             FastPreferenceData<Long, Long> trainData,
-            FastPreferenceData<Long, Long> positiveTrainData) {
+            FastPreferenceData<Long, Long> positiveTrainData,
+            UserSimilarityIndex simIndex,
+            long imfSeed) {
         Map<String, Supplier<Recommender<Long, Long>>> recMap = new HashMap<>();
 
-        UserSimilarity<Long> sim = new VectorCosineUserSimilarity<>(trainData, 0.5, true);
         if (conf.getKnnFullParamK() == conf.getKnnTestParamK()) {
-            recMap.put("kNN (full/test)", () -> new UserNeighborhoodRecommender<>(positiveTrainData, new TopKUserNeighborhood<>(sim, conf.getKnnFullParamK()), 1));
+            recMap.put("kNN (full/test)", () -> new DenseUserNeighborhoodRecommender<>(positiveTrainData, simIndex.neighborhood(userIndex, conf.getKnnFullParamK()), 1));
         } else {
-            recMap.put("kNN (full)", () -> new UserNeighborhoodRecommender<>(positiveTrainData, new TopKUserNeighborhood<>(sim, conf.getKnnFullParamK()), 1));
-            recMap.put("kNN (test)", () -> new UserNeighborhoodRecommender<>(positiveTrainData, new TopKUserNeighborhood<>(sim, conf.getKnnTestParamK()), 1));
+            recMap.put("kNN (full)", () -> new DenseUserNeighborhoodRecommender<>(positiveTrainData, simIndex.neighborhood(userIndex, conf.getKnnFullParamK()), 1));
+            recMap.put("kNN (test)", () -> new DenseUserNeighborhoodRecommender<>(positiveTrainData, simIndex.neighborhood(userIndex, conf.getKnnTestParamK()), 1));
         }
 
         if (conf.getNormKnnFullParamK() == conf.getNormKnnTestParamK()
                 && conf.getNormKnnFullParamMin() == conf.getNormKnnTestParamMin()) {
             recMap.put("Normalized kNN (full/test)", () -> new NormUserNeighborhoodRecommenderWithMinimum<>(
                     positiveTrainData,
-                    new TopKUserNeighborhood<>(sim, conf.getNormKnnFullParamK()), 1, conf.getNormKnnFullParamMin()));
+                    simIndex.neighborhood(userIndex, conf.getNormKnnFullParamK()), 1, conf.getNormKnnFullParamMin()));
         } else {
             recMap.put("Normalized kNN (full)", () -> new NormUserNeighborhoodRecommenderWithMinimum<>(
                     positiveTrainData,
-                    new TopKUserNeighborhood<>(sim, conf.getNormKnnFullParamK()), 1, conf.getNormKnnFullParamMin()));
+                    simIndex.neighborhood(userIndex, conf.getNormKnnFullParamK()), 1, conf.getNormKnnFullParamMin()));
             recMap.put("Normalized kNN (test)", () -> new NormUserNeighborhoodRecommenderWithMinimum<>(
                     positiveTrainData,
-                    new TopKUserNeighborhood<>(sim, conf.getNormKnnTestParamK()), 1, conf.getNormKnnTestParamMin()));
+                    simIndex.neighborhood(userIndex, conf.getNormKnnTestParamK()), 1, conf.getNormKnnTestParamMin()));
         }
 
         int numIter = 20;
         if (conf.getImfFullParamK() == conf.getImfTestParamK()
                 && conf.getImfFullParamLambda() == conf.getImfTestParamLambda()
                 && conf.getImfFullParamAlpha() == conf.getImfTestParamAlpha()) {
-            recMap.put("iMF (full/test)", () -> new MFRecommender<>(userIndex, itemIndex,
-                    new HKVFactorizer<Long, Long>(conf.getImfFullParamLambda(),
-                            (double x) -> 1 + conf.getImfFullParamAlpha() * x, numIter).factorize(
-                            conf.getImfFullParamK(), trainData)));
+            recMap.put("iMF (full/test)", () -> new CandidateMFRecommender<>(userIndex, itemIndex,
+                    factorize(conf.getImfFullParamK(), conf.getImfFullParamLambda(), conf.getImfFullParamAlpha(), numIter, trainData, imfSeed)));
         } else {
-            recMap.put("iMF (full)", () -> new MFRecommender<>(userIndex, itemIndex,
-                    new HKVFactorizer<Long, Long>(conf.getImfFullParamLambda(),
-                            (double x) -> 1 + conf.getImfFullParamAlpha() * x, numIter).factorize(
-                            conf.getImfFullParamK(), trainData)));
-            recMap.put("iMF (test)", () -> new MFRecommender<>(userIndex, itemIndex,
-                    new HKVFactorizer<Long, Long>(conf.getImfTestParamLambda(),
-                            (double x) -> 1 + conf.getImfTestParamAlpha() * x, numIter).factorize(
-                            conf.getImfTestParamK(), trainData)));
+            recMap.put("iMF (full)", () -> new CandidateMFRecommender<>(userIndex, itemIndex,
+                    factorize(conf.getImfFullParamK(), conf.getImfFullParamLambda(), conf.getImfFullParamAlpha(), numIter, trainData, imfSeed)));
+            recMap.put("iMF (test)", () -> new CandidateMFRecommender<>(userIndex, itemIndex,
+                    factorize(conf.getImfTestParamK(), conf.getImfTestParamLambda(), conf.getImfTestParamAlpha(), numIter, trainData, imfSeed)));
         }
         return recMap;
     }
 
-    private static int nTies(double[] v1, double[] v2) {
-        int nTies = 0;
-        for (int i = 0; i < v1.length; i++) {
-            if (Double.compare(v1[i], v2[i]) == 0) {
-                nTies++;
-            }
-        }
-        return nTies;
-    }
-
-    private static int nTiesAtZero(double[] v1, double[] v2) {
-        int nTiesAtZero = 0;
-        for (int i = 0; i < v1.length; i++) {
-            if (Double.compare(v1[i], v2[i]) == 0 && Double.compare(v1[i], 0.0) == 0) {
-                nTiesAtZero++;
-            }
-        }
-        return nTiesAtZero;
+    /**
+     * iMF factorization with the same initialization as
+     * {@link HKVFactorizer#factorize(int, FastPreferenceData)}, drawn from a
+     * seeded generator instead of Math.random.
+     */
+    private static Factorization<Long, Long> factorize(int k, double lambda, double alpha, int numIter, FastPreferenceData<Long, Long> trainData, long seed) {
+        Random rnd = new Random(seed);
+        Factorization<Long, Long> factorization = new Factorization<>(trainData, trainData, k, x -> sqrt(1.0 / k) * rnd.nextDouble());
+        new HKVFactorizer<Long, Long>(lambda, (double x) -> 1 + alpha * x, numIter).factorize(factorization, trainData);
+        return factorization;
     }
 
 }
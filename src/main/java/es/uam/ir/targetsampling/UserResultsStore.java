@@ -0,0 +1,300 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.targetsampling;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.Set;
+
+/**
+ * Columnar store of the per-user values of the metrics, kept in a
+ * memory-mapped file rather than on the heap. There is one column per
+ * (target size, recommender, metric), with one row per user and fold, and
+ * values are stored as doubles or, optionally, as floats.
+ *
+ * <p>
+ * The store is made of two files: the data file, with the columns one after
+ * the other, and a text file that lists the columns in order, preceded by a
+ * line with the capacity of the columns, the number of rows filled and the
+ * number of bytes per value. The column list is written when the store is
+ * closed, so that the results can be opened again later for analysis,
+ * unless the store is discarded, in which case both files are deleted.
+ *
+ * <p>
+ * The data file is mapped in a few large segments rather than one region per
+ * column, so that sweeps with many columns do not hold as many mappings.
+ * The last segment is remapped with a larger size as columns are added.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public class UserResultsStore implements Closeable {
+
+    public final static String DATA_FILE = "per-user.bin";
+    public final static String COLUMNS_FILE = "per-user-columns.txt";
+
+    private final static int SEGMENT_SHIFT = 30;
+    private final static long SEGMENT_BYTES = 1L << SEGMENT_SHIFT;
+
+    private final String path;
+    private final boolean writable;
+    private final int capacity;
+    private final int bytesPerValue;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private long mapped;
+    private final Map<String, Map<String, Integer>> columnIndex = new HashMap<>();
+    private final Set<String> recNames = new LinkedHashSet<>();
+    private final List<String> columnNames = new ArrayList<>();
+    private int length;
+    private boolean discarded;
+
+    /**
+     * Creates an empty store, replacing any previous one at the same path.
+     *
+     * @param path prefix of the store files
+     * @param capacity number of rows of each column
+     * @param float32 store values as floats instead of doubles
+     * @throws IOException
+     * @throws IllegalArgumentException if the rows of the given capacity
+     * cannot be indexed by an int
+     */
+    public UserResultsStore(String path, long capacity, boolean float32) throws IOException {
+        this.path = path;
+        this.writable = true;
+        this.bytesPerValue = float32 ? Float.BYTES : Double.BYTES;
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Per-user results of " + capacity + " rows (users times folds) exceed the maximum of " + Integer.MAX_VALUE + " rows");
+        }
+        this.capacity = (int) capacity;
+        new File(path + DATA_FILE).delete();
+        this.file = new RandomAccessFile(path + DATA_FILE, "rw");
+        this.channel = file.getChannel();
+    }
+
+    private UserResultsStore(String path, int capacity, int length, int bytesPerValue, List<String> columnNames) throws IOException {
+        this.path = path;
+        this.writable = false;
+        this.capacity = capacity;
+        this.bytesPerValue = bytesPerValue;
+        this.length = length;
+        this.file = new RandomAccessFile(path + DATA_FILE, "r");
+        this.channel = file.getChannel();
+        for (String columnName : columnNames) {
+            int tab = columnName.lastIndexOf('\t');
+            String recName = columnName.substring(0, tab);
+            String metric = columnName.substring(tab + 1);
+            columnIndex.computeIfAbsent(recName, r -> new HashMap<>()).put(metric, this.columnNames.size());
+            recNames.add(recName);
+            this.columnNames.add(columnName);
+        }
+
+        long end = (long) columnNames.size() * capacity * bytesPerValue;
+        MappedByteBuffer[] readSegments = new MappedByteBuffer[(int) ((end + SEGMENT_BYTES - 1) >>> SEGMENT_SHIFT)];
+        for (int i = 0; i < readSegments.length; i++) {
+            long start = (long) i << SEGMENT_SHIFT;
+            readSegments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_BYTES, end - start));
+        }
+        this.segments = readSegments;
+        this.mapped = end;
+    }
+
+    /**
+     * Opens a store written by a previous run, for reading.
+     *
+     * @param path prefix of the store files
+     * @return store
+     * @throws IOException
+     */
+    public static UserResultsStore open(String path) throws IOException {
+        try (Scanner in = new Scanner(new File(path + COLUMNS_FILE))) {
+            String[] header = in.nextLine().split("\t");
+            List<String> columnNames = new ArrayList<>();
+            while (in.hasNextLine()) {
+                columnNames.add(in.nextLine());
+            }
+            return new UserResultsStore(path,
+                    Integer.valueOf(header[0]),
+                    Integer.valueOf(header[1]),
+                    Integer.valueOf(header[2]),
+                    columnNames);
+        }
+    }
+
+    /**
+     * Column of a recommender and metric, which is added to the store if it
+     * does not exist yet.
+     *
+     * @param recName target size and recommender, separated by a tab
+     * @param metric
+     * @return index of the column
+     * @throws UncheckedIOException if the column cannot be mapped
+     */
+    public synchronized int column(String recName, String metric) {
+        Integer column = columnIndex.computeIfAbsent(recName, r -> new HashMap<>()).get(metric);
+        if (column == null) {
+            if (!writable) {
+                throw new IllegalArgumentException("no column for " + recName + ", " + metric);
+            }
+            column = columnNames.size();
+            try {
+                map((long) (column + 1) * capacity * bytesPerValue);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            columnIndex.get(recName).put(metric, column);
+            recNames.add(recName);
+            columnNames.add(recName + "\t" + metric);
+        }
+        return column;
+    }
+
+    /**
+     * Maps the data file up to a given size, growing the last segment to at
+     * least twice its size, or up to the size of a full segment, so that the
+     * file is remapped only a logarithmic number of times per segment.
+     */
+    private void map(long end) throws IOException {
+        MappedByteBuffer[] grown = segments;
+        while (mapped < end) {
+            int last = grown.length - 1;
+            long start;
+            if (last >= 0 && grown[last].capacity() < SEGMENT_BYTES) {
+                start = (long) last << SEGMENT_SHIFT;
+            } else {
+                start = (long) grown.length << SEGMENT_SHIFT;
+                grown = Arrays.copyOf(grown, grown.length + 1);
+                last = grown.length - 1;
+            }
+            long size = Math.min(SEGMENT_BYTES, Math.max(2 * (mapped - start), end - start));
+            grown[last] = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+            mapped = start + size;
+        }
+        segments = grown;
+    }
+
+    /**
+     * Target size and recommender of the columns, in the order in which
+     * they were added.
+     *
+     * @return list of target size and recommender, separated by a tab
+     */
+    public List<String> recNames() {
+        return new ArrayList<>(recNames);
+    }
+
+    /**
+     * Number of rows filled in.
+     *
+     * @return number of rows
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Sets the number of rows filled in.
+     *
+     * @param length number of rows
+     */
+    public void setLength(int length) {
+        this.length = length;
+    }
+
+    /**
+     * Stores a value.
+     *
+     * @param column
+     * @param row
+     * @param value
+     */
+    public void set(int column, int row, double value) {
+        long offset = offset(column, row);
+        MappedByteBuffer segment = segments[(int) (offset >>> SEGMENT_SHIFT)];
+        if (bytesPerValue == Float.BYTES) {
+            segment.putFloat((int) (offset & (SEGMENT_BYTES - 1)), (float) value);
+        } else {
+            segment.putDouble((int) (offset & (SEGMENT_BYTES - 1)), value);
+        }
+    }
+
+    /**
+     * Reads the first rows of a column.
+     *
+     * @param column
+     * @param values array where the first values.length rows are copied
+     */
+    public void read(int column, double[] values) {
+        MappedByteBuffer[] mappedSegments = segments;
+        for (int row = 0; row < values.length; row++) {
+            long offset = offset(column, row);
+            MappedByteBuffer segment = mappedSegments[(int) (offset >>> SEGMENT_SHIFT)];
+            if (bytesPerValue == Float.BYTES) {
+                values[row] = segment.getFloat((int) (offset & (SEGMENT_BYTES - 1)));
+            } else {
+                values[row] = segment.getDouble((int) (offset & (SEGMENT_BYTES - 1)));
+            }
+        }
+    }
+
+    /**
+     * Offset of a value in the data file. Values never straddle two segments,
+     * since the size of the segments is a multiple of that of the values.
+     */
+    private long offset(int column, int row) {
+        return ((long) column * capacity + row) * bytesPerValue;
+    }
+
+    /**
+     * Marks the store to be deleted when it is closed, once its values have
+     * been processed and are no longer needed.
+     */
+    public void discard() {
+        discarded = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writable && !discarded) {
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+            try (PrintStream out = new PrintStream(path + COLUMNS_FILE)) {
+                out.println(capacity + "\t" + length + "\t" + bytesPerValue);
+                columnNames.forEach(out::println);
+            }
+        }
+        segments = new MappedByteBuffer[0];
+        channel.close();
+        file.close();
+        if (discarded) {
+            // The file may still be mapped until the buffers are collected, where that prevents deleting it
+            for (String name : new String[]{DATA_FILE, COLUMNS_FILE}) {
+                File stored = new File(path + name);
+                if (!stored.delete() && stored.exists()) {
+                    stored.deleteOnExit();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.util;
+
+import java.util.SplittableRandom;
+
+/**
+ * Reproducible random streams. A stream is identified by a run seed and a
+ * sequence of keys (e.g. fold, target size, uidx), and is independent of
+ * the streams with other keys, so that parallel tasks do not share any
+ * generator and a given configuration draws the same numbers in every run.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public class RandomStreams {
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    /**
+     * Seed of the stream identified by a run seed and a sequence of keys.
+     *
+     * @param seed run seed
+     * @param keys keys of the stream
+     * @return seed of the stream
+     */
+    public static long seed(long seed, long... keys) {
+        long h = mix(seed);
+        for (long key : keys) {
+            h = key(h, key);
+        }
+        return h;
+    }
+
+    /**
+     * Seed of the stream with one more key than a given stream, so that the
+     * seeds of many streams can be derived without allocating arrays of
+     * keys: {@code key(seed(seed, k1, k2), k3) == seed(seed, k1, k2, k3)}.
+     *
+     * @param streamSeed seed of the stream
+     * @param key additional key
+     * @return seed of the stream with the additional key
+     */
+    public static long key(long streamSeed, long key) {
+        return mix(streamSeed + GOLDEN_GAMMA * (key + 1));
+    }
+
+    /**
+     * First bounded int of a stream, without creating its generator: the
+     * same value as {@code new SplittableRandom(streamSeed).nextInt(bound)}.
+     *
+     * @param streamSeed seed of the stream
+     * @param bound upper bound (exclusive), positive
+     * @return random int in [0, bound)
+     */
+    public static int nextInt(long streamSeed, int bound) {
+        long s = streamSeed + GOLDEN_GAMMA;
+        int r = mix32(s);
+        int m = bound - 1;
+        if ((bound & m) == 0) {
+            return r & m;
+        }
+        for (int u = r >>> 1; u + m - (r = u % bound) < 0; ) {
+            s += GOLDEN_GAMMA;
+            u = mix32(s) >>> 1;
+        }
+        return r;
+    }
+
+    /**
+     * Random generator of the stream identified by a run seed and a sequence
+     * of keys.
+     *
+     * @param seed run seed
+     * @param keys keys of the stream
+     * @return a new generator for the stream
+     */
+    public static SplittableRandom of(long seed, long... keys) {
+        return new SplittableRandom(seed(seed, keys));
+    }
+
+    /**
+     * 32-bit finalizer of {@link SplittableRandom#nextInt()}.
+     */
+    private static int mix32(long z) {
+        z = (z ^ (z >>> 33)) * 0x62a9d9ed799705f5L;
+        return (int) (((z ^ (z >>> 28)) * 0xcb24d0a5c88c35b3L) >>> 32);
+    }
+
+    /**
+     * SplitMix64 finalizer.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}